@@ -22,6 +22,17 @@ public class MainApplication {
             
             // Initialize services
             CurrencyExchangeService currencyExchangeService = new CurrencyExchangeService();
+            // Offline mode: serve rates from a local stand-in for the exchange rate API
+            LocalRateServer rateStandIn = null;
+            if (Boolean.getBoolean("exchange.rates.standin")) {
+                rateStandIn = new LocalRateServer(CurrencyExchangeService.FALLBACK_RATES);
+                currencyExchangeService.setRateProvider(CurrencyExchangeService.createDefaultProviders(rateStandIn.getUrl()));
+                System.out.println("Using local exchange rate stand-in at " + rateStandIn.getUrl());
+            }
+            RateHistoryStore rateHistoryStore = new RateHistoryStore(java.nio.file.Paths.get(
+                    System.getProperty("exchange.rates.history.dir", "rate-history")));
+            currencyExchangeService.setRateHistoryStore(rateHistoryStore);
+            currencyExchangeService.startBackgroundRefresh();
             SignatureVerificationService signatureVerificationService = new SignatureVerificationService();
             CoreBankingSystemUpdater coreBankingSystemUpdater = new CoreBankingSystemUpdater();
             UserService userService = new UserService(); // Initialize UserService
@@ -31,8 +42,64 @@ public class MainApplication {
             ChequeStatusManager chequeStatusManager = new ChequeStatusManager();
             EmailNotificationService emailNotificationService = new EmailNotificationService();
 
+            HeavyHitterTracker heavyHitterTracker = new HeavyHitterTracker();
+
+            // Fraud thresholds can be tuned at runtime by editing this file
+            FraudThresholdConfig.watch(java.nio.file.Paths.get(
+                    System.getProperty("fraud.thresholds.file", "fraud-thresholds.properties")));
+
             // Set up dependencies
             fraudDetectionService.setHistoryManager(chequeHistoryManager);
+            fraudDetectionService.setHeavyHitterTracker(heavyHitterTracker);
+            // Remember every cheque for 180 days across the whole book within a fixed memory budget
+            long fingerprintTtlMillis = java.util.concurrent.TimeUnit.DAYS.toMillis(180);
+            ChequeFingerprintIndex fingerprintIndex = new ChequeFingerprintIndex(
+                    Long.getLong("cheque.fingerprint.budgetBytes", 32L * 1024 * 1024), fingerprintTtlMillis);
+            fraudDetectionService.setFingerprintIndex(fingerprintIndex);
+            String scoringModelFile = System.getProperty("fraud.model.file");
+            if (scoringModelFile != null) {
+                fraudDetectionService.setScoringModel(FraudScoringModel.load(java.nio.file.Paths.get(scoringModelFile)));
+            }
+
+            // Closed months older than the hot window move out of memory into the columnar archive
+            ChequeArchive chequeArchive = new ChequeArchive(
+                    java.nio.file.Paths.get(System.getProperty("cheque.archive.dir", "cheque-archive")),
+                    java.time.ZoneId.systemDefault());
+
+            // Cheque history survives restarts in an append-only log; months already archived are
+            // counted from the archive and log segments holding only those are skipped. Replaying
+            // it also refills the fraud indexes, whose pre-checks are only
+            // safe if they have seen every recorded cheque
+            ChequeHistoryLog chequeHistoryLog = new ChequeHistoryLog(
+                    java.nio.file.Paths.get(System.getProperty("cheque.history.dir", "cheque-history")),
+                    Long.getLong("cheque.history.segmentBytes", 64L * 1024 * 1024),
+                    ChequeHistoryLog.Durability.valueOf(
+                            System.getProperty("cheque.history.durability", "BATCH").toUpperCase(Locale.ROOT)));
+            long recoveredCheques = chequeHistoryManager.attachLog(chequeHistoryLog, chequeArchive);
+            long replayFrom = System.currentTimeMillis() - Math.max(heavyHitterTracker.getWindowMillis(), fingerprintTtlMillis);
+            chequeHistoryManager.forEachSince(replayFrom, record -> {
+                heavyHitterTracker.record(record.getAccountNumber(), record.getAmount(), record.getTimestampMillis());
+                fingerprintIndex.checkAndRecord(record.getAccountNumber(), record.getChequeNumber(),
+                        record.getCurrency(), record.getAmount(), record.getTimestampMillis());
+            });
+            System.out.println("Recovered " + recoveredCheques + " cheque history records.");
+
+            // Months that left the hot window since the last run are archived now. The hot window
+            // never starts after the month holding the first day of the recent-frequency window,
+            // whose cheques must stay in memory
+            int hotMonths = Integer.getInteger("cheque.archive.hotMonths", 3);
+            java.time.YearMonth firstHotMonth = java.time.YearMonth.now().minusMonths(hotMonths - 1L);
+            java.time.YearMonth recentStartMonth = chequeArchive.monthOf(System.currentTimeMillis()
+                    - java.util.concurrent.TimeUnit.DAYS.toMillis(ChequeHistoryManager.RECENT_DAYS));
+            if (firstHotMonth.isAfter(recentStartMonth)) {
+                Logger.warn("cheque.archive.hotMonths=" + hotMonths + " would archive recent cheques; keeping "
+                        + recentStartMonth + " onwards in memory");
+                firstHotMonth = recentStartMonth;
+            }
+            int archivedMonths = chequeHistoryManager.archiveMonthsBefore(chequeArchive, firstHotMonth);
+            if (archivedMonths > 0) {
+                System.out.println("Archived " + archivedMonths + " month(s) of cheque history.");
+            }
 
             // Initialize new services for image processing
             ChequeImageHandler imageHandler = new ChequeImageHandler();
@@ -51,6 +118,8 @@ public class MainApplication {
             ChequeProcessor chequeProcessor = new ChequeProcessor(currencyExchangeService, signatureVerificationService,
                     coreBankingSystemUpdater, chequeHistoryManager, fraudDetectionService, exceptionReportManager, chequeStatusManager, emailNotificationService);
             
+            chequeProcessor.setHeavyHitterTracker(heavyHitterTracker);
+
             System.out.println("System initialized successfully.");
     
             while (authenticatedUser != null) { // Continue loop only if authenticated
@@ -70,6 +139,7 @@ public class MainApplication {
                 System.out.println("13. Admin: Edit IFSC/Bank Codes");
                 System.out.println("14. Admin: Manage Batches");
                 System.out.println("15. Admin: Reset Stuck Transactions");
+                System.out.println("16. View Hot Accounts");
                 System.out.print("Enter your choice: ");  
                 int choice = scanner.nextInt();  
                 scanner.nextLine(); // Consume newline  
@@ -83,7 +153,11 @@ public class MainApplication {
                         String chequeNumber = scanner.nextLine();  
     
                         System.out.println("Enter currency (e.g., USD, EUR, GBP):");  
-                        String currency = scanner.nextLine();  
+                        int currency = CurrencyRegistry.parse(scanner.nextLine());
+                        if (currency < 0) {
+                            System.out.println("Unsupported currency. Please use an ISO 4217 code.");
+                            break;
+                        }
     
                         System.out.println("Enter amount:");  
                         double amount = scanner.nextDouble();  
@@ -104,7 +178,7 @@ public class MainApplication {
                     case 3:  
                         System.out.println("Enter account number to view cheque history:");  
                         String historyAccountNumber = scanner.nextLine();  
-                        chequeHistoryManager.displayChequeHistory(historyAccountNumber);  
+                        chequeHistoryManager.displayChequeHistory(historyAccountNumber, scanner);
                         break;  
     
                     case 4:
@@ -127,6 +201,12 @@ public class MainApplication {
     
                     case 8:  
                         System.out.println("Logging out and exiting...");  
+                        currencyExchangeService.shutdown();
+                        rateHistoryStore.close();
+                        chequeHistoryLog.close();
+                        if (rateStandIn != null) {
+                            rateStandIn.close();
+                        }
                         scanner.close();  
                         return;  
     
@@ -229,13 +309,18 @@ public class MainApplication {
                                     System.out.print("Cheque number: ");
                                     String chq = scanner.nextLine();
                                     System.out.print("Currency: ");
-                                    String curr = scanner.nextLine();
+                                    int curr = CurrencyRegistry.parse(scanner.nextLine());
+                                    if (curr < 0) {
+                                        System.out.println("Unsupported currency. Please re-enter this cheque with an ISO 4217 code.");
+                                        i--;
+                                        continue;
+                                    }
                                     System.out.print("Amount: ");
                                     double amt = scanner.nextDouble();
                                     scanner.nextLine();
                                     System.out.print("Signature: ");
                                     String sig = scanner.nextLine();
-                                    batchCheques.add(new BatchCheque(acc, chq, curr, amt, sig));
+                                    batchCheques.add(new BatchCheque(acc, chq, curr, Money.toMinorUnits(amt, curr), sig));
                                 }
                                 adminService.createBatch(batchId, batchCheques);
                                 break;
@@ -279,6 +364,10 @@ public class MainApplication {
                                 break;
                         }
                         break;
+
+                    case 16:
+                        heavyHitterTracker.displayHotAccounts();
+                        break;
     
                     default:  
                         System.out.println("Invalid choice. Please try again.");  
@@ -345,14 +434,20 @@ public class MainApplication {
                     System.out.print("Cheque number: ");
                     String chequeNumber = scanner.nextLine();
                     System.out.print("Currency (e.g., USD, EUR, GBP): ");
-                    String currency = scanner.nextLine();
+                    String currencyCode = scanner.nextLine();
                     System.out.print("Amount: ");
                     double amount = scanner.nextDouble();
                     scanner.nextLine(); // Consume newline
                     System.out.print("Signature: ");
                     String signature = scanner.nextLine();
 
-                    chequesToProcess.add(new BatchCheque(accountNumber, chequeNumber, currency, amount, signature));
+                    int currency = CurrencyRegistry.parse(currencyCode);
+                    if (currency < 0) {
+                        System.out.println("Unsupported currency " + currencyCode + ". Cheque #" + (i + 1) + " skipped.");
+                        continue;
+                    }
+                    chequesToProcess.add(new BatchCheque(accountNumber, chequeNumber, currency,
+                            Money.toMinorUnits(amount, currency), signature));
                 } catch (Exception ex) {
                     Logger.error("Error collecting cheque batch input: " + ex.getMessage());
                     scanner.nextLine(); // Clear buffer
@@ -384,7 +479,8 @@ public class MainApplication {
             System.out.println("2. Get Exchange Rate");
             System.out.println("3. Get Detailed Exchange Rate Information");
             System.out.println("4. Convert Currency");
-            System.out.println("5. Return to Main Menu");
+            System.out.println("5. View Exchange Rate History");
+            System.out.println("6. Return to Main Menu");
             System.out.print("Enter your choice: ");
             
             int choice = scanner.nextInt();
@@ -417,14 +513,14 @@ public class MainApplication {
                     // Get detailed exchange rate information
                     System.out.print("Enter currency code: ");
                     String detailCurrencyCode = scanner.nextLine().toUpperCase();
-                    Map<String, Double> detailedRates = currencyExchangeService.getDetailedExchangeRates(detailCurrencyCode);
+                    DetailedRate detailedRate = currencyExchangeService.getDetailedRate(detailCurrencyCode);
                     
-                    if (!detailedRates.isEmpty()) {
+                    if (detailedRate != null) {
                         System.out.println("\nDetailed Exchange Rate Information for " + detailCurrencyCode + ":");
-                        System.out.println("Mid Rate: " + detailedRates.get("mid"));
-                        System.out.println("Buy Rate: " + detailedRates.get("buy"));
-                        System.out.println("Sell Rate: " + detailedRates.get("sell"));
-                        System.out.println("Fee Rate: " + detailedRates.get("fee"));
+                        System.out.println("Mid Rate: " + detailedRate.getMid());
+                        System.out.println("Buy Rate: " + detailedRate.getBuy());
+                        System.out.println("Sell Rate: " + detailedRate.getSell());
+                        System.out.println("Fee Rate: " + detailedRate.getFee());
                     } else {
                         System.out.println("Currency not supported or exchange rate unavailable.");
                     }
@@ -452,6 +548,41 @@ public class MainApplication {
                     break;
                     
                 case 5:
+                    // Look up past rates from the history store
+                    System.out.print("Enter currency code: ");
+                    String historyCurrencyCode = scanner.nextLine().toUpperCase();
+                    int historyCurrency = CurrencyRegistry.parse(historyCurrencyCode);
+                    if (historyCurrency < 0) {
+                        System.out.println("Unsupported currency: " + historyCurrencyCode);
+                        break;
+                    }
+                    System.out.print("Enter start date (YYYY-MM-DD): ");
+                    String historyStartStr = scanner.nextLine();
+                    System.out.print("Enter end date (YYYY-MM-DD): ");
+                    String historyEndStr = scanner.nextLine();
+                    long historyFrom;
+                    long historyTo;
+                    try {
+                        java.time.ZoneId zone = java.time.ZoneId.systemDefault();
+                        historyFrom = LocalDate.parse(historyStartStr, DateTimeFormatter.ISO_LOCAL_DATE)
+                                .atStartOfDay(zone).toInstant().toEpochMilli();
+                        historyTo = LocalDate.parse(historyEndStr, DateTimeFormatter.ISO_LOCAL_DATE)
+                                .plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1;
+                    } catch (Exception e) {
+                        System.out.println("Invalid date format. Please use YYYY-MM-DD.");
+                        break;
+                    }
+
+                    double openingRate = currencyExchangeService.getHistoricalRate(historyCurrency, historyFrom);
+                    System.out.println("\nExchange rate history for " + historyCurrencyCode + ":");
+                    System.out.println("Rate in force at start: " + (openingRate > 0 ? String.valueOf(openingRate) : "not recorded"));
+                    int points = currencyExchangeService.scanRateHistory(historyCurrency, historyFrom, historyTo,
+                            (epochMillis, historicalRate) -> System.out.println(
+                                    new java.util.Date(epochMillis) + " | " + historicalRate));
+                    System.out.println(points + " rate(s) recorded in the period.");
+                    break;
+
+                case 6:
                     // Return to main menu
                     return;
                     
@@ -472,7 +603,8 @@ public class MainApplication {
         System.out.println("2. Weekly Report (Last 7 Days)");
         System.out.println("3. Monthly Report (Last 30 Days)");
         System.out.println("4. Custom Date Range Report");
-        System.out.println("5. Return to Main Menu");
+        System.out.println("5. Batch Reports (One Pass)");
+        System.out.println("6. Return to Main Menu");
         System.out.print("Enter your choice: ");
         int choice = scanner.nextInt();
         scanner.nextLine(); // Consume newline
@@ -513,31 +645,91 @@ public class MainApplication {
                 reportNamePrefix = "custom_report_";
                 break;
             case 5:
+                handleBatchReportGeneration(scanner, chequeHistoryManager);
+                return;
+            case 6:
                 return; // Return to main menu
             default:
                 System.out.println("Invalid choice. Please try again.");
                 return;
         }
 
-        List<ChequeHistoryManager.ChequeRecord> records = chequeHistoryManager.getAllChequeRecordsInPeriod(startDate, endDate);
+        System.out.print("1. Summary totals  2. Detailed CSV export\nEnter report type: ");
+        int reportType = scanner.nextInt();
+        scanner.nextLine(); // Consume newline
+        if (reportType == 1) {
+            // Served from the daily rollups, without scanning cheque records
+            chequeHistoryManager.displaySummaryReport(startDate, endDate);
+            return;
+        }
 
-        if (records.isEmpty()) {
+        java.time.ZoneId zone = java.time.ZoneId.systemDefault();
+        long fromMillis = startDate.atStartOfDay(zone).toInstant().toEpochMilli();
+        long toMillis = endDate.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+
+        if (chequeHistoryManager.countInPeriod(fromMillis, toMillis) == 0) {
             System.out.println("No cheque records found for the selected period.");
             return;
         }
 
-        String csvData = chequeHistoryManager.generateChequeReportCSV(records);
+        // Large reports can be compressed with -Dreport.gzip=true
+        boolean compress = Boolean.getBoolean("report.gzip");
         String fileName = reportNamePrefix + startDate.format(DateTimeFormatter.ISO_LOCAL_DATE) +
-                          "_to_" + endDate.format(DateTimeFormatter.ISO_LOCAL_DATE) + ".csv";
+                          "_to_" + endDate.format(DateTimeFormatter.ISO_LOCAL_DATE) + (compress ? ".csv.gz" : ".csv");
 
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(fileName))) {
-            writer.write(csvData);
-            System.out.println("Report generated successfully: " + fileName);
+        // Long periods are split into partitions of this many days and formatted in parallel
+        int partitionDays = Integer.getInteger("report.partitionDays", 7);
+        int parallelism = Integer.getInteger("report.parallelism", Runtime.getRuntime().availableProcessors());
+
+        try {
+            long written = new ParallelReportGenerator(partitionDays, parallelism).generate(chequeHistoryManager,
+                    startDate, endDate, zone, java.nio.file.Paths.get(fileName), compress);
+            System.out.println("Report generated successfully: " + fileName + " (" + written + " records)");
         } catch (IOException e) {
             System.err.println("Error writing report to file: " + e.getMessage());
         }
     }
 
+    /**
+     * Reads a list of report specs and writes all of them in a single pass over the history.
+     * An empty list runs the standard daily, weekly and monthly reports.
+     * @param scanner The scanner for user input
+     * @param chequeHistoryManager The cheque history manager
+     */
+    private static void handleBatchReportGeneration(Scanner scanner, ChequeHistoryManager chequeHistoryManager) {
+        System.out.println("Enter one report per line as name,startDate,endDate[,account[,currency]].");
+        System.out.println("Finish with an empty line; enter nothing for the daily, weekly and monthly reports.");
+        List<MultiReportGenerator.ReportSpec> specs = new ArrayList<>();
+        String line;
+        while (!(line = scanner.nextLine().trim()).isEmpty()) {
+            try {
+                specs.add(MultiReportGenerator.ReportSpec.parse(line));
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+        if (specs.isEmpty()) {
+            LocalDate today = LocalDate.now();
+            specs.add(new MultiReportGenerator.ReportSpec("daily_report", today, today, null, -1));
+            specs.add(new MultiReportGenerator.ReportSpec("weekly_report", today.minusDays(6), today, null, -1));
+            specs.add(new MultiReportGenerator.ReportSpec("monthly_report", today.minusDays(29), today, null, -1));
+        }
+
+        boolean compress = Boolean.getBoolean("report.gzip");
+        try {
+            long[] written = new MultiReportGenerator(java.time.ZoneId.systemDefault()).generate(
+                    chequeHistoryManager, specs, java.nio.file.Paths.get("."), compress);
+            for (int i = 0; i < specs.size(); i++) {
+                System.out.println("Report generated successfully: " + specs.get(i).fileName(compress)
+                        + " (" + written[i] + " records)");
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Error writing reports: " + e.getMessage());
+        }
+    }
+
     /**
      * Handles the cheque printing simulation.
      * @param scanner The scanner for user input
@@ -731,11 +923,11 @@ public class MainApplication {
     class BatchCheque {
         String accountNumber;
         String chequeNumber;
-        String currency;
-        double amount;
+        int currency; // Ordinal from CurrencyRegistry
+        long amount; // Minor units of the currency
         String signature;
 
-        public BatchCheque(String accountNumber, String chequeNumber, String currency, double amount, String signature) {
+        public BatchCheque(String accountNumber, String chequeNumber, int currency, long amount, String signature) {
             this.accountNumber = accountNumber;
             this.chequeNumber = chequeNumber;
             this.currency = currency;
@@ -834,18 +1026,116 @@ public class MainApplication {
 
     /**
      * ChequeStatusManager to track the status of cheques.
+     * Statuses live in a ConcurrentHashMap, so reads never lock. Each cheque is keyed by one
+     * long packing an interned account id with its cheque number: plain cheque serials are
+     * packed as their numeric value and any other cheque number is interned too.
+     * Status changes follow the state machine untracked -> ISSUED -> PROCESSED or CANCELED,
+     * and each change is a single compare-and-set, so concurrent callers never overwrite
+     * one another.
      */
     static class ChequeStatusManager {
-        // Key: accountNumber + ":" + chequeNumber, Value: ChequeStatus
-        private Map<String, ChequeStatus> chequeStatusMap = new HashMap<>();
+        private static final int MAX_PACKED_DIGITS = 9; // Always below 2^32
+        private static final long INTERNED_CHEQUE_FLAG = 1L << 32;
+        // Account ids above this would reach the sign bit and clash with the not-found key
+        private static final int MAX_ACCOUNT_IDS = 1 << 30;
 
-        public void setStatus(String accountNumber, String chequeNumber, ChequeStatus status) {
-            chequeStatusMap.put(accountNumber + ":" + chequeNumber, status);
-            System.out.println("Status of cheque " + chequeNumber + " for account " + accountNumber + " set to " + status);
+        /**
+         * Outcome of a requested status change.
+         */
+        enum TransitionResult {
+            /** The cheque moved to the requested status */
+            APPLIED,
+            /** The cheque already had the requested status; repeating a change is harmless */
+            UNCHANGED,
+            /** The cheque's current status does not allow the change */
+            ILLEGAL,
+            /** The cheque has never been issued */
+            NOT_FOUND
+        }
+
+        /**
+         * Assigns stable int ids to strings; lookups are lock-free, new ids are assigned under a lock.
+         */
+        private static final class IdInterner {
+            private final java.util.concurrent.ConcurrentHashMap<String, Integer> ids = new java.util.concurrent.ConcurrentHashMap<>();
+            private final List<String> names = new ArrayList<>();
+
+            /**
+             * @return The id of the string, or -1 if it has never been interned
+             */
+            int lookup(String value) {
+                Integer id = ids.get(value);
+                return id == null ? -1 : id;
+            }
+
+            int intern(String value) {
+                Integer id = ids.get(value);
+                if (id != null) {
+                    return id;
+                }
+                synchronized (this) {
+                    id = ids.get(value);
+                    if (id == null) {
+                        id = names.size();
+                        names.add(value);
+                        ids.put(value, id);
+                    }
+                    return id;
+                }
+            }
+
+            synchronized String name(int id) {
+                return names.get(id);
+            }
+        }
+
+        private final java.util.concurrent.ConcurrentHashMap<Long, ChequeStatus> chequeStatusMap = new java.util.concurrent.ConcurrentHashMap<>();
+        private final IdInterner accountIds = new IdInterner();
+        private final IdInterner chequeIds = new IdInterner();
+
+        /**
+         * Atomically moves a cheque to the target status if its current status allows it:
+         * ISSUED from untracked, PROCESSED or CANCELED from ISSUED.
+         */
+        public TransitionResult transition(String accountNumber, String chequeNumber, ChequeStatus target) {
+            TransitionResult result;
+            if (target == ChequeStatus.ISSUED) {
+                ChequeStatus previous = chequeStatusMap.putIfAbsent(internKey(accountNumber, chequeNumber), target);
+                result = previous == null ? TransitionResult.APPLIED
+                        : previous == target ? TransitionResult.UNCHANGED : TransitionResult.ILLEGAL;
+            } else {
+                result = compareAndSet(accountNumber, chequeNumber, ChequeStatus.ISSUED, target);
+            }
+            if (result == TransitionResult.APPLIED) {
+                System.out.println("Status of cheque " + chequeNumber + " for account " + accountNumber + " set to " + target);
+            }
+            return result;
+        }
+
+        private TransitionResult compareAndSet(String accountNumber, String chequeNumber,
+                                               ChequeStatus expected, ChequeStatus target) {
+            long key = lookupKey(accountNumber, chequeNumber);
+            if (key < 0) {
+                return TransitionResult.NOT_FOUND;
+            }
+            if (chequeStatusMap.replace(key, expected, target)) {
+                return TransitionResult.APPLIED;
+            }
+            // Every status other than the expected one is final for this change
+            ChequeStatus current = chequeStatusMap.get(key);
+            if (current == null) {
+                return TransitionResult.NOT_FOUND;
+            }
+            return current == target ? TransitionResult.UNCHANGED : TransitionResult.ILLEGAL;
         }
 
         public ChequeStatus getStatus(String accountNumber, String chequeNumber) {
-            return chequeStatusMap.getOrDefault(accountNumber + ":" + chequeNumber, null);
+            long key = lookupKey(accountNumber, chequeNumber);
+            return key < 0 ? null : chequeStatusMap.get(key);
+        }
+
+        public int size() {
+            return chequeStatusMap.size();
         }
 
         public void displayAllStatuses() {
@@ -854,10 +1144,73 @@ public class MainApplication {
                 return;
             }
             System.out.println("\n--- Cheque Statuses ---");
-            for (Map.Entry<String, ChequeStatus> entry : chequeStatusMap.entrySet()) {
-                String[] parts = entry.getKey().split(":");
-                System.out.printf("Account: %s | Cheque: %s | Status: %s\n", parts[0], parts[1], entry.getValue());
+            for (Map.Entry<Long, ChequeStatus> entry : chequeStatusMap.entrySet()) {
+                long key = entry.getKey();
+                System.out.printf("Account: %s | Cheque: %s | Status: %s\n",
+                        accountIds.name((int) (key >>> 33)), chequeNumberOf(key), entry.getValue());
+            }
+        }
+
+        /**
+         * Packs the account id into bits 33-62, a flag telling whether the cheque number
+         * was interned into bit 32, and the cheque serial or id into the low 32 bits.
+         * Keys are never negative.
+         * @throws IllegalStateException if more accounts are tracked than fit in the key
+         */
+        private long internKey(String accountNumber, String chequeNumber) {
+            int account = accountIds.intern(accountNumber);
+            if (account >= MAX_ACCOUNT_IDS) {
+                throw new IllegalStateException("Cannot track cheque statuses for more than "
+                        + MAX_ACCOUNT_IDS + " accounts");
+            }
+            long serial = packedSerial(chequeNumber);
+            long cheque = serial >= 0 ? serial : INTERNED_CHEQUE_FLAG | chequeIds.intern(chequeNumber);
+            return ((long) account << 33) | cheque;
+        }
+
+        /**
+         * @return The key, or -1 if the account or cheque number has never been seen
+         */
+        private long lookupKey(String accountNumber, String chequeNumber) {
+            int account = accountIds.lookup(accountNumber);
+            if (account < 0 || account >= MAX_ACCOUNT_IDS) {
+                return -1;
+            }
+            long serial = packedSerial(chequeNumber);
+            if (serial < 0) {
+                int cheque = chequeIds.lookup(chequeNumber);
+                if (cheque < 0) {
+                    return -1;
+                }
+                serial = INTERNED_CHEQUE_FLAG | cheque;
+            }
+            return ((long) account << 33) | serial;
+        }
+
+        private String chequeNumberOf(long key) {
+            return (key & INTERNED_CHEQUE_FLAG) != 0
+                    ? chequeIds.name((int) key)
+                    : Long.toString(key & 0xFFFFFFFFL);
+        }
+
+        /**
+         * @return The value of a cheque number made only of digits that prints back
+         *         identically (no leading zeros, at most MAX_PACKED_DIGITS), or -1
+         */
+        private static long packedSerial(String chequeNumber) {
+            int length = chequeNumber.length();
+            if (length == 0 || length > MAX_PACKED_DIGITS || (length > 1 && chequeNumber.charAt(0) == '0')) {
+                return -1;
+            }
+            long value = 0;
+            for (int i = 0; i < length; i++) {
+                char c = chequeNumber.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                value = value * 10 + (c - '0');
             }
+            return value;
         }
     }
 
@@ -1024,6 +1377,7 @@ public class MainApplication {
         private ExceptionReportManager exceptionReportManager;
         private ChequeStatusManager chequeStatusManager;
         private EmailNotificationService emailNotificationService;
+        private HeavyHitterTracker heavyHitterTracker;
 
         public ChequeProcessor(CurrencyExchangeService currencyExchangeService,
                                SignatureVerificationService signatureVerificationService,
@@ -1043,15 +1397,61 @@ public class MainApplication {
             this.emailNotificationService = emailNotificationService;
         }
 
-        public void processCheque(String accountNumber, String chequeNumber, String currency, double amount, String signature) {
+        public void setHeavyHitterTracker(HeavyHitterTracker heavyHitterTracker) {
+            this.heavyHitterTracker = heavyHitterTracker;
+        }
+
+        /**
+         * @param currency The currency ordinal from CurrencyRegistry, validated at intake
+         * @param amount The amount as entered; one that is not finite or does not fit in minor units is rejected
+         */
+        public void processCheque(String accountNumber, String chequeNumber, int currency, double amount, String signature) {
+            long amountMinorUnits;
             try {
-                // Mark as issued if not already tracked
-                if (chequeStatusManager.getStatus(accountNumber, chequeNumber) == null) {
-                    chequeStatusManager.setStatus(accountNumber, chequeNumber, ChequeStatus.ISSUED);
+                amountMinorUnits = Money.toMinorUnits(amount, currency);
+            } catch (NumberFormatException | ArithmeticException ex) {
+                // NaN and infinity have no decimal form; huge amounts overflow a long of minor units
+                exceptionReportManager.reportException(accountNumber, chequeNumber, "InvalidAmount", "Amount " + amount + " cannot be processed");
+                Logger.warn("Invalid amount " + amount + " for cheque: " + chequeNumber);
+                System.out.println("Invalid cheque amount. Cheque processing aborted.");
+                return;
+            }
+            processCheque(accountNumber, chequeNumber, currency, amountMinorUnits, signature);
+        }
+
+        /**
+         * @param currency The currency ordinal from CurrencyRegistry, validated at intake
+         * @param amountMinorUnits The cheque amount in minor units of its currency
+         */
+        public void processCheque(String accountNumber, String chequeNumber, int currency, long amountMinorUnits, String signature) {
+            // Fraud checks and history still work on decimal amounts
+            double amount = Money.toAmount(amountMinorUnits, currency);
+            try {
+                // History records hold ids of bounded length; reject longer ones before anything is tracked or posted
+                if (!ChequeHistoryLog.fitsRecord(accountNumber) || !ChequeHistoryLog.fitsRecord(chequeNumber)) {
+                    exceptionReportManager.reportException(accountNumber, chequeNumber, "InvalidInput",
+                            "Account and cheque numbers are limited to " + ChequeHistoryLog.MAX_ID_BYTES + " bytes");
+                    Logger.warn("Identifier too long for cheque: " + chequeNumber);
+                    System.out.println("Account or cheque number is too long. Cheque processing aborted.");
+                    return;
+                }
+
+                // Mark as issued if not already tracked; a processed or canceled cheque is never processed again
+                if (chequeStatusManager.transition(accountNumber, chequeNumber, ChequeStatus.ISSUED)
+                        == ChequeStatusManager.TransitionResult.ILLEGAL) {
+                    ChequeStatus status = chequeStatusManager.getStatus(accountNumber, chequeNumber);
+                    Logger.warn("Cheque " + chequeNumber + " for account " + accountNumber + " is already " + status);
+                    System.out.println("Cheque is already " + status + ". Processing aborted.");
+                    return;
                 }
 
                 Logger.info("Processing cheque: " + chequeNumber + " for account: " + accountNumber);
 
+                // Track load per account before any check can abort processing
+                if (heavyHitterTracker != null) {
+                    heavyHitterTracker.record(accountNumber, amount);
+                }
+
                 System.out.println("Processing cheque...");
 
                 // Step 1: Verify signature
@@ -1069,7 +1469,7 @@ public class MainApplication {
                 }
 
                 // Step 2: Fraud detection
-                if (fraudDetectionService.isFraudulentCheque(accountNumber, chequeNumber, amount)) {
+                if (fraudDetectionService.isFraudulentCheque(accountNumber, chequeNumber, currency, amount)) {
                     exceptionReportManager.reportException(accountNumber, chequeNumber, "Duplicate", "Fraudulent or duplicate cheque detected");
                     Logger.warn("Fraudulent cheque detected: " + chequeNumber);
                     System.out.println("Fraudulent cheque detected. Cheque processing aborted.");
@@ -1105,46 +1505,63 @@ public class MainApplication {
                 }
 
                 // Step 3: Get detailed exchange rate information if currency is not local
-                double amountInLocalCurrency = amount;
-                if (!"USD".equalsIgnoreCase(currency)) { // USD is the base currency
-                    Map<String, Double> detailedRates = currencyExchangeService.getDetailedExchangeRates(currency);
+                long localMinorUnits = amountMinorUnits;
+                if (currency != CurrencyRegistry.USD) { // USD is the base currency
+                    DetailedRate detailedRate = currencyExchangeService.getDetailedRate(currency);
 
-                    if (detailedRates.isEmpty()) {
-                        Logger.error("Exchange rate unavailable for currency: " + currency);
+                    if (detailedRate == null) {
+                        Logger.error("Exchange rate unavailable for currency: " + CurrencyRegistry.code(currency));
                         System.out.println("Failed to fetch exchange rate. Cheque processing aborted.");
                         return;
                     }
 
                     // Use the buy rate for incoming transactions
-                    double buyRate = detailedRates.get("buy");
-                    double fee = detailedRates.get("fee");
+                    long buyRate = detailedRate.getScaledBuy();
+                    long fee = detailedRate.getScaledFee();
 
-                    // Step 4: Convert amount to local currency with detailed calculations
-                    amountInLocalCurrency = amount * buyRate;
-                    double feeAmount = amount * fee;
+                    // Step 4: Convert amount to local currency in fixed point
+                    localMinorUnits = Money.convert(amountMinorUnits, currency, buyRate, CurrencyRegistry.USD);
+                    long feeMinorUnits = Money.convert(amountMinorUnits, currency, fee, CurrencyRegistry.USD);
 
-                    System.out.println("Currency: " + currency.toUpperCase());
-                    System.out.println("Original amount: " + amount);
-                    System.out.println("Exchange rate (buy): " + buyRate);
-                    System.out.println("Fee rate: " + fee);
-                    System.out.println("Fee amount: " + feeAmount);
-                    System.out.println("Amount in local currency (before fees): " + amountInLocalCurrency);
+                    System.out.println("Currency: " + CurrencyRegistry.code(currency));
+                    System.out.println("Original amount: " + Money.format(amountMinorUnits, currency));
+                    System.out.println("Exchange rate (buy): " + detailedRate.getBuy());
+                    System.out.println("Fee rate: " + detailedRate.getFee());
+                    System.out.println("Fee amount: " + Money.format(feeMinorUnits, CurrencyRegistry.USD));
+                    System.out.println("Amount in local currency (before fees): " + Money.format(localMinorUnits, CurrencyRegistry.USD));
 
                     // Apply fee
-                    amountInLocalCurrency -= feeAmount;
-                    System.out.println("Final amount in local currency (USD): " + amountInLocalCurrency);
+                    localMinorUnits -= feeMinorUnits;
+                    System.out.println("Final amount in local currency (USD): " + Money.format(localMinorUnits, CurrencyRegistry.USD));
                 } else {
-                    System.out.println("Processing in local currency (USD): " + amountInLocalCurrency);
+                    System.out.println("Processing in local currency (USD): " + Money.format(localMinorUnits, CurrencyRegistry.USD));
                 }
 
-                // Step 5: Update core banking system
-                coreBankingSystemUpdater.updateCoreBankingSystem(accountNumber, amountInLocalCurrency);
+                // Step 5: Claim the cheque before posting; of concurrent processors and a cancellation, exactly one wins
+                ChequeStatusManager.TransitionResult claim =
+                        chequeStatusManager.transition(accountNumber, chequeNumber, ChequeStatus.PROCESSED);
+                if (claim != ChequeStatusManager.TransitionResult.APPLIED) {
+                    ChequeStatus status = chequeStatusManager.getStatus(accountNumber, chequeNumber);
+                    Logger.warn("Cheque " + chequeNumber + " was not posted because it is " + status);
+                    System.out.println("Cheque is already " + status + ". Processing aborted.");
+                    return;
+                }
 
-                // Step 6: Record cheque history
-                chequeHistoryManager.recordCheque(accountNumber, chequeNumber, currency, amount, new java.util.Date());
+                // Step 6: Update core banking system. If this fails the claim stands: the update may have
+                // posted before failing, and the duplicate checks have already seen this cheque, so it is
+                // left to manual review from the exception report rather than reopened for a retry
+                coreBankingSystemUpdater.updateCoreBankingSystem(accountNumber, Money.toAmount(localMinorUnits, CurrencyRegistry.USD));
+
+                // Step 7: Record cheque history. The money is posted by now, so a log failure must not
+                // read as a failed cheque; it is reported for reconciliation instead
+                try {
+                    chequeHistoryManager.recordCheque(accountNumber, chequeNumber, currency, amountMinorUnits, new java.util.Date());
+                } catch (java.io.UncheckedIOException ex) {
+                    Logger.error("Cheque " + chequeNumber + " was posted but not logged: " + ex.getCause().getMessage());
+                    exceptionReportManager.reportException(accountNumber, chequeNumber, "HistoryNotLogged",
+                            "Posted, but missing from the history log: " + ex.getCause().getMessage());
+                }
 
-                // If cheque is processed successfully:
-                chequeStatusManager.setStatus(accountNumber, chequeNumber, ChequeStatus.PROCESSED);
                 Logger.info("Cheque processed successfully: " + chequeNumber);
                 System.out.println("Cheque processed successfully.");
             } catch (Exception ex) {
@@ -1161,9 +1578,19 @@ public class MainApplication {
         }
 
         // Add a method to cancel a cheque
+        // A cheque not yet tracked is issued first, so it can be stopped before it is presented
         public void cancelCheque(String accountNumber, String chequeNumber) {
             try {
-                chequeStatusManager.setStatus(accountNumber, chequeNumber, ChequeStatus.CANCELED);
+                chequeStatusManager.transition(accountNumber, chequeNumber, ChequeStatus.ISSUED);
+                ChequeStatusManager.TransitionResult result =
+                        chequeStatusManager.transition(accountNumber, chequeNumber, ChequeStatus.CANCELED);
+                if (result == ChequeStatusManager.TransitionResult.ILLEGAL) {
+                    ChequeStatus status = chequeStatusManager.getStatus(accountNumber, chequeNumber);
+                    Logger.warn("Cheque " + chequeNumber + " cannot be canceled because it is " + status);
+                    System.out.println("Cheque " + chequeNumber + " for account " + accountNumber
+                            + " cannot be canceled because it is " + status + ".");
+                    return;
+                }
                 Logger.info("Cheque canceled: " + chequeNumber + " for account: " + accountNumber);
                 System.out.println("Cheque " + chequeNumber + " for account " + accountNumber + " has been canceled.");
             } catch (Exception ex) {
@@ -1179,10 +1606,32 @@ public class MainApplication {
      * and dynamic fetching of rates from external sources.
      */
     static class CurrencyExchangeService {
-        private Map<String, CurrencyRate> exchangeRateCache = new HashMap<>();
+        // Replaced wholesale on every refresh, so readers never see a partially updated cache
+        private volatile RateSnapshot rateSnapshot = RateSnapshot.EMPTY;
         private static final String BASE_CURRENCY = "USD";
+        private static final int BASE_ORDINAL = CurrencyRegistry.USD;
         private static final long CACHE_EXPIRY_MINUTES = 60; // Cache expiry time in minutes
+        private static final long CACHE_EXPIRY_NANOS = java.util.concurrent.TimeUnit.MINUTES.toNanos(CACHE_EXPIRY_MINUTES);
+        private static final long REFRESH_AHEAD_MINUTES = 45; // Refresh well before the cache expires
+        private static final long REFRESH_WAIT_MILLIS = 2000; // Longest a cache miss waits on a refresh
+        private static final long MISS_TTL_NANOS = java.util.concurrent.TimeUnit.MINUTES.toNanos(1); // How long a miss skips refreshing
+        // The refresh currently running, shared by every caller that misses while it runs
+        private final java.util.concurrent.atomic.AtomicReference<java.util.concurrent.CompletableFuture<Boolean>> refreshInFlight =
+                new java.util.concurrent.atomic.AtomicReference<>();
+        private java.util.concurrent.ScheduledExecutorService refreshScheduler;
+        // Runs the fetch itself, so no caller waits longer than it chose to
+        private final java.util.concurrent.ExecutorService fetchExecutor =
+                java.util.concurrent.Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "exchange-rate-fetch");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // Per currency ordinal, when a recent miss stops suppressing refreshes (0 if none)
+        private final java.util.concurrent.atomic.AtomicLongArray missUntilNanos =
+                new java.util.concurrent.atomic.AtomicLongArray(CurrencyRegistry.count());
         private static final String API_KEY = "demo"; // Replace with your actual API key for production
+        private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+        private static final int READ_TIMEOUT_MILLIS = 5000;
 
         // Fallback exchange rates in case API is unavailable
         private static final Map<String, Double> FALLBACK_RATES = new HashMap<String, Double>() {{
@@ -1198,49 +1647,116 @@ public class MainApplication {
             put("NZD", 0.62);
         }};
 
+        private volatile RateHistoryStore rateHistoryStore;
+        private volatile RateProvider rateProvider = createDefaultProviders(
+                // Using Open Exchange Rates API as an example
+                // In a real application, you would use a proper API key
+                "https://open.er-api.com/v6/latest/" + BASE_CURRENCY + "?apikey=" + API_KEY);
+
+        /**
+         * Build the default failover chain: the HTTP API, then a local rates file.
+         * The fallback rates are not part of the chain, so they are never cached as fresh.
+         * @param apiUrl The URL of the exchange rate API
+         * @return The provider chain
+         */
+        public static RateProvider createDefaultProviders(String apiUrl) {
+            return new RateProviderChain(Arrays.asList(
+                    new HttpRateProvider(apiUrl, CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS),
+                    new FileRateProvider(java.nio.file.Paths.get(
+                            System.getProperty("exchange.rates.file", "exchange-rates.json")))));
+        }
+
+        /**
+         * Record every refreshed rate in a history store, so past rates can be looked up later
+         * @param rateHistoryStore The store, or null to stop recording
+         */
+        public void setRateHistoryStore(RateHistoryStore rateHistoryStore) {
+            this.rateHistoryStore = rateHistoryStore;
+        }
+
+        /**
+         * Replace the source of exchange rates used by refreshes
+         * @param rateProvider The provider, typically a RateProviderChain
+         */
+        public void setRateProvider(RateProvider rateProvider) {
+            this.rateProvider = Objects.requireNonNull(rateProvider);
+        }
+
         /**
          * Get the exchange rate for a specific currency
          * @param currency The currency code (e.g., EUR, GBP)
          * @return The exchange rate relative to the base currency (USD)
          */
         public double getExchangeRate(String currency) {
-            System.out.println("Fetching exchange rate for currency: " + currency);
-
-            // Standardize currency code
-            String currencyCode = currency.toUpperCase();
+            int ordinal = CurrencyRegistry.parse(currency);
+            if (ordinal < 0) {
+                System.out.println("Unsupported currency: " + currency);
+                return 0.0;
+            }
+            return getExchangeRate(ordinal);
+        }
 
-            // Return 1.0 if it's the base currency
-            if (BASE_CURRENCY.equals(currencyCode)) {
+        /**
+         * Get the exchange rate for a currency by its registry ordinal.
+         * A fresh cached rate is read from the current snapshot without locking or allocating.
+         * @param currency The currency ordinal from CurrencyRegistry
+         * @return The exchange rate relative to the base currency (USD), or 0.0 if unsupported or unavailable
+         */
+        public double getExchangeRate(int currency) {
+            if (currency == BASE_ORDINAL) {
                 return 1.0;
             }
-
-            // Check cache first
-            if (isCacheValid(currencyCode)) {
-                CurrencyRate cachedRate = exchangeRateCache.get(currencyCode);
-                System.out.println("Using cached rate: " + cachedRate.getRate() + " (Last updated: " +
-                        cachedRate.getLastUpdated().format(java.time.format.DateTimeFormatter.ISO_LOCAL_DATE_TIME) + ")");
-                return cachedRate.getRate();
+            if (!isSupported(currency)) {
+                return 0.0;
+            }
+            double rate = rateSnapshot.freshRate(currency, System.nanoTime());
+            if (rate > 0) {
+                return rate;
             }
+            return loadRate(currency);
+        }
 
-            // Try to fetch from external API
-            try {
-                double apiRate = fetchRateFromAPI(currencyCode);
-                if (apiRate > 0) {
-                    // Cache the new rate
-                    exchangeRateCache.put(currencyCode, new CurrencyRate(apiRate, java.time.LocalDateTime.now()));
-                    return apiRate;
+        private static boolean isSupported(int currency) {
+            return currency >= 0 && currency < CurrencyRegistry.count();
+        }
+
+        /**
+         * Slow path for a missing or expired rate: wait a bounded time for a refresh of the whole
+         * table, then fall back to the stale or fallback rate. A miss is remembered briefly, so a
+         * currency no provider quotes does not trigger a refresh on every lookup.
+         * @param currency The currency ordinal
+         * @return The exchange rate, or 0.0 if none is available
+         */
+        private double loadRate(int currency) {
+            String currencyCode = CurrencyRegistry.code(currency);
+
+            long missUntil = missUntilNanos.get(currency);
+            if (missUntil == 0 || System.nanoTime() - missUntil >= 0) {
+                // Cache miss: one fetch refreshes every currency, not just this one
+                boolean refreshed = refreshRates(REFRESH_WAIT_MILLIS);
+                double rate = rateSnapshot.freshRate(currency, System.nanoTime());
+                if (rate > 0) {
+                    return rate;
+                }
+                missUntilNanos.set(currency, System.nanoTime() + MISS_TTL_NANOS);
+                if (refreshed) {
+                    Logger.warn("No exchange rate provider quotes " + currencyCode);
                 }
-            } catch (Exception e) {
-                System.out.println("Error fetching exchange rate from API: " + e.getMessage());
-                // Continue to fallback rates
             }
 
-            // Use fallback rates if API fetch failed
+            // Stale-while-revalidate: the snapshot only ever holds rates a provider quoted, so the
+            // last of them beats a static one while the refresh is slow, failing or lacks the currency
+            CurrencyRate staleRate = rateSnapshot.currencyRate(currency);
+            if (staleRate != null) {
+                Logger.warn("Using stale exchange rate for " + currencyCode + " from " + staleRate.getLastUpdated());
+                return staleRate.getRate();
+            }
+
+            // Last resort when no provider has ever quoted this currency; never cached, so it
+            // cannot mask or outlive a real rate
             Double fallbackRate = FALLBACK_RATES.get(currencyCode);
             if (fallbackRate != null) {
                 System.out.println("Using fallback rate for " + currencyCode + ": " + fallbackRate);
-                // Cache the fallback rate
-                exchangeRateCache.put(currencyCode, new CurrencyRate(fallbackRate, java.time.LocalDateTime.now()));
                 return fallbackRate;
             }
 
@@ -1256,53 +1772,185 @@ public class MainApplication {
          * @return The converted amount
          */
         public double convertCurrency(double amount, String fromCurrency, String toCurrency) {
-            double fromRate = getExchangeRate(fromCurrency);
-            double toRate = getExchangeRate(toCurrency);
+            int from = CurrencyRegistry.parse(fromCurrency);
+            int to = CurrencyRegistry.parse(toCurrency);
+            double crossRate = from >= 0 && to >= 0 ? getCrossRate(from, to) : 0.0;
 
-            if (fromRate <= 0 || toRate <= 0) {
+            if (crossRate <= 0) {
                 System.out.println("Cannot convert: invalid exchange rates");
                 return 0.0;
             }
 
-            // Convert to base currency first, then to target currency
-            double amountInBaseCurrency = amount * fromRate;
-            double convertedAmount = amountInBaseCurrency / toRate;
+            double convertedAmount = amount * crossRate;
 
             System.out.println(String.format("Converted %.2f %s to %.2f %s",
-                    amount, fromCurrency.toUpperCase(), convertedAmount, toCurrency.toUpperCase()));
+                    amount, CurrencyRegistry.code(from), convertedAmount, CurrencyRegistry.code(to)));
 
             return convertedAmount;
         }
 
         /**
-         * Get detailed exchange rate information including buy/sell rates and fees
-         * @param currency The currency code
-         * @return A map containing detailed rate information
+         * Get the rate converting one unit of a currency into another, read from the
+         * cross-rate matrix of the current snapshot
+         * @param from The source currency ordinal
+         * @param to The target currency ordinal
+         * @return The cross rate, or 0.0 if either currency is unsupported or its rate is unavailable
          */
-        public Map<String, Double> getDetailedExchangeRates(String currency) {
-            String currencyCode = currency.toUpperCase();
-            double baseRate = getExchangeRate(currencyCode);
-
-            if (baseRate <= 0) {
-                return Collections.emptyMap();
+        public double getCrossRate(int from, int to) {
+            double crossRate = rateSnapshot.freshCrossRate(from, to, System.nanoTime());
+            if (crossRate > 0) {
+                return crossRate;
+            }
+            // Slow path: load whichever rate is missing, then read the rebuilt matrix
+            double fromRate = getExchangeRate(from);
+            double toRate = getExchangeRate(to);
+            if (fromRate <= 0 || toRate <= 0) {
+                return 0.0;
             }
+            crossRate = rateSnapshot.freshCrossRate(from, to, System.nanoTime());
+            return crossRate > 0 ? crossRate : fromRate / toRate;
+        }
 
-            Map<String, Double> detailedRates = new HashMap<>();
-            detailedRates.put("mid", baseRate);
-
-            // Calculate buy rate (slightly lower than mid rate)
-            double buyRate = baseRate * 0.99;
-            detailedRates.put("buy", buyRate);
+        /**
+         * Convert the first n amounts from one currency to another, without logging
+         * @param amounts The amounts in the source currency
+         * @param from The source currency ordinal
+         * @param to The target currency ordinal
+         * @param converted Receives the amounts in the target currency
+         * @return false if no exchange rate is available, leaving converted untouched
+         */
+        public boolean convert(double[] amounts, int from, int to, double[] converted, int n) {
+            checkBatch(amounts.length, converted.length, n);
+            double crossRate = getCrossRate(from, to);
+            if (crossRate <= 0) {
+                return false;
+            }
+            // Straight multiply over primitive arrays; the JIT vectorizes this loop
+            for (int i = 0; i < n; i++) {
+                converted[i] = amounts[i] * crossRate;
+            }
+            return true;
+        }
 
-            // Calculate sell rate (slightly higher than mid rate)
-            double sellRate = baseRate * 1.01;
-            detailedRates.put("sell", sellRate);
+        /**
+         * Convert the first n amounts held in minor units (e.g. cents) from one currency
+         * to minor units of another, in fixed point as a single cheque is, rounding half-even
+         * @return false if either currency is unsupported or no exchange rate is available,
+         *         leaving converted untouched
+         */
+        public boolean convert(long[] amounts, int from, int to, long[] converted, int n) {
+            checkBatch(amounts.length, converted.length, n);
+            double crossRate = getCrossRate(from, to);
+            if (crossRate <= 0) {
+                return false;
+            }
+            long scaledRate = Money.toScaledRate(crossRate);
+            for (int i = 0; i < n; i++) {
+                converted[i] = Money.convert(amounts[i], from, scaledRate, to);
+            }
+            return true;
+        }
 
-            // Calculate fees
-            double fee = baseRate * 0.005; // 0.5% fee
-            detailedRates.put("fee", fee);
+        /**
+         * Convert the first n amounts, each with its own currency pair, by direct lookups
+         * in the cross-rate matrix
+         * @param fromCurrencies The source currency ordinal of each amount
+         * @param toCurrencies The target currency ordinal of each amount
+         * @return The number of amounts converted; an amount whose rate is unavailable converts to 0.0
+         */
+        public int convert(double[] amounts, int[] fromCurrencies, int[] toCurrencies, double[] converted, int n) {
+            checkBatch(amounts.length, converted.length, n);
+            if (fromCurrencies.length < n || toCurrencies.length < n) {
+                throw new IllegalArgumentException("Currency arrays must hold at least " + n + " entries");
+            }
+            RateSnapshot snapshot = rateSnapshot;
+            long now = System.nanoTime();
+            int convertedCount = 0;
+            for (int i = 0; i < n; i++) {
+                int from = fromCurrencies[i];
+                int to = toCurrencies[i];
+                double crossRate = snapshot.isFresh(from, now) && snapshot.isFresh(to, now)
+                        ? snapshot.crossRate(from, to)
+                        : 0.0;
+                if (crossRate <= 0) {
+                    // Rare: a stale or missing rate goes through the slow path and a newer snapshot
+                    crossRate = getCrossRate(from, to);
+                    snapshot = rateSnapshot;
+                }
+                converted[i] = amounts[i] * crossRate;
+                if (crossRate > 0) {
+                    convertedCount++;
+                }
+            }
+            return convertedCount;
+        }
 
-            return detailedRates;
+        private static void checkBatch(int amountCount, int convertedCount, int n) {
+            if (n < 0 || amountCount < n || convertedCount < n) {
+                throw new IllegalArgumentException("Amount arrays must hold at least " + n + " entries");
+            }
+        }
+
+        /**
+         * Get detailed exchange rate information including buy/sell rates and fees
+         * @param currency The currency code
+         * @return The detailed rate, or null if the currency is unsupported or no rate is available
+         */
+        public DetailedRate getDetailedRate(String currency) {
+            int ordinal = CurrencyRegistry.parse(currency);
+            if (ordinal < 0) {
+                System.out.println("Unsupported currency: " + currency);
+                return null;
+            }
+            return getDetailedRate(ordinal);
+        }
+
+        /**
+         * Get detailed exchange rate information including buy/sell rates and fees.
+         * A fresh rate is read from the current snapshot, where it was derived when cached.
+         * @param currency The currency ordinal from CurrencyRegistry
+         * @return The detailed rate, or null if the currency is unsupported or no rate is available
+         */
+        public DetailedRate getDetailedRate(int currency) {
+            if (currency == BASE_ORDINAL) {
+                return DetailedRate.BASE;
+            }
+            if (!isSupported(currency)) {
+                return null;
+            }
+            DetailedRate detailedRate = rateSnapshot.freshDetailedRate(currency, System.nanoTime());
+            if (detailedRate != null) {
+                return detailedRate;
+            }
+            double rate = loadRate(currency);
+            if (rate <= 0) {
+                return null;
+            }
+            detailedRate = rateSnapshot.freshDetailedRate(currency, System.nanoTime());
+            return detailedRate != null ? detailedRate : DetailedRate.of(rate);
+        }
+
+        /**
+         * Get detailed exchange rate information including buy/sell rates and fees
+         * @param currency The currency code
+         * @return A map containing detailed rate information
+         */
+        public Map<String, Double> getDetailedExchangeRates(String currency) {
+            int ordinal = CurrencyRegistry.parse(currency);
+            if (ordinal < 0) {
+                return Collections.emptyMap();
+            }
+            return getDetailedExchangeRates(ordinal);
+        }
+
+        /**
+         * Get detailed exchange rate information including buy/sell rates and fees
+         * @param currency The currency ordinal from CurrencyRegistry
+         * @return A map containing detailed rate information
+         */
+        public Map<String, Double> getDetailedExchangeRates(int currency) {
+            DetailedRate detailedRate = getDetailedRate(currency);
+            return detailedRate != null ? detailedRate.toMap() : Collections.emptyMap();
         }
 
         /**
@@ -1320,76 +1968,189 @@ public class MainApplication {
         }
 
         /**
-         * Check if the cached rate is still valid
-         * @param currency The currency code
-         * @return true if the cache is valid, false otherwise
+         * Refresh the cached rate of every currency from a single API response.
+         * Concurrent callers share one fetch: if a refresh is already running, this waits for it.
+         * @return true if the rates were refreshed, false if the API was unavailable
          */
-        private boolean isCacheValid(String currency) {
-            if (!exchangeRateCache.containsKey(currency)) {
+        public boolean refreshRates() {
+            return refreshRates(Long.MAX_VALUE);
+        }
+
+        /**
+         * Single-flight refresh: the first caller starts the fetch, and every caller, the first
+         * included, waits on its result for at most maxWaitMillis
+         * @param maxWaitMillis How long the caller waits for the refresh
+         * @return true if the rates were refreshed, false if the fetch failed or the wait timed out
+         */
+        private boolean refreshRates(long maxWaitMillis) {
+            java.util.concurrent.CompletableFuture<Boolean> refresh = new java.util.concurrent.CompletableFuture<>();
+            java.util.concurrent.CompletableFuture<Boolean> inFlight = refreshInFlight.compareAndExchange(null, refresh);
+            if (inFlight != null) {
+                return awaitRefresh(inFlight, maxWaitMillis);
+            }
+            try {
+                fetchExecutor.execute(() -> {
+                    boolean refreshed = false;
+                    try {
+                        refreshed = fetchAndPublishRates();
+                    } finally {
+                        refresh.complete(refreshed);
+                        refreshInFlight.set(null);
+                    }
+                });
+            } catch (java.util.concurrent.RejectedExecutionException e) {
+                // Shut down: nothing will fetch any more
+                refresh.complete(false);
+                refreshInFlight.set(null);
                 return false;
             }
+            return awaitRefresh(refresh, maxWaitMillis);
+        }
 
-            CurrencyRate cachedRate = exchangeRateCache.get(currency);
-            java.time.LocalDateTime now = java.time.LocalDateTime.now();
-            java.time.LocalDateTime expiryTime = cachedRate.getLastUpdated().plusMinutes(CACHE_EXPIRY_MINUTES);
+        private static boolean awaitRefresh(java.util.concurrent.CompletableFuture<Boolean> inFlight, long maxWaitMillis) {
+            try {
+                return inFlight.get(maxWaitMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
+            } catch (java.util.concurrent.TimeoutException e) {
+                Logger.warn("Gave up waiting " + maxWaitMillis + "ms for the exchange rate refresh");
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (java.util.concurrent.ExecutionException e) {
+                return false;
+            }
+        }
 
-            return now.isBefore(expiryTime);
+        private synchronized boolean fetchAndPublishRates() {
+            try {
+                long nowMillis = System.currentTimeMillis();
+                java.time.LocalDateTime now = java.time.LocalDateTime.now();
+                long expiresAtNanos = System.nanoTime() + CACHE_EXPIRY_NANOS;
+                RateSnapshot.Builder builder = rateSnapshot.toBuilder(CurrencyRegistry.count());
+                int[] fetched = new int[CurrencyRegistry.count()];
+                int[] fetchedCount = {0};
+                // Rates go straight from the response bytes into the new snapshot
+                int count = rateProvider.fetchRates((ordinal, rate) -> {
+                    builder.put(ordinal, rate, now, expiresAtNanos);
+                    fetched[fetchedCount[0]++] = ordinal;
+                });
+                RateSnapshot snapshot = builder.build(BASE_ORDINAL);
+                rateSnapshot = snapshot;
+                System.out.println("Refreshed exchange rates for " + count + " currencies");
+                recordHistory(snapshot, fetched, fetchedCount[0], nowMillis);
+                return true;
+            } catch (Exception e) {
+                System.out.println("Error fetching exchange rates from API: " + e.getMessage());
+                return false;
+            }
+        }
+
+        private void recordHistory(RateSnapshot snapshot, int[] currencies, int count, long epochMillis) {
+            RateHistoryStore store = rateHistoryStore;
+            if (store == null) {
+                return;
+            }
+            try {
+                for (int i = 0; i < count; i++) {
+                    store.append(currencies[i], epochMillis, snapshot.currencyRate(currencies[i]).getRate());
+                }
+            } catch (IOException e) {
+                Logger.error("Failed to record exchange rate history: " + e.getMessage());
+            }
         }
 
         /**
-         * Fetch exchange rate from an external API
-         * @param currency The currency code
-         * @return The exchange rate
-         * @throws Exception If there's an error fetching the rate
+         * Get the rate that was in force for a currency at a past time
+         * @param currency The currency ordinal from CurrencyRegistry
+         * @param epochMillis The time to look up
+         * @return The historical rate, or 0.0 if no rate was recorded by then
          */
-        private double fetchRateFromAPI(String currency) throws Exception {
-            // Using Open Exchange Rates API as an example
-            // In a real application, you would use a proper API key
-            String apiUrl = "https://open.er-api.com/v6/latest/" + BASE_CURRENCY + "?apikey=" + API_KEY;
-
+        public double getHistoricalRate(int currency, long epochMillis) {
+            if (currency == BASE_ORDINAL) {
+                return 1.0;
+            }
+            RateHistoryStore store = rateHistoryStore;
+            if (store == null) {
+                return 0.0;
+            }
             try {
-                java.net.URL url = new java.net.URL(apiUrl);
-                java.net.HttpURLConnection connection = (java.net.HttpURLConnection) url.openConnection();
-                connection.setRequestMethod("GET");
-                connection.setConnectTimeout(5000);
-                connection.setReadTimeout(5000);
-
-                int status = connection.getResponseCode();
-                if (status != 200) {
-                    throw new Exception("API returned status code: " + status);
-                }
+                return store.rateAt(currency, epochMillis);
+            } catch (IOException e) {
+                Logger.error("Failed to read exchange rate history: " + e.getMessage());
+                return 0.0;
+            }
+        }
 
-                java.io.BufferedReader reader = new java.io.BufferedReader(new java.io.InputStreamReader(connection.getInputStream()));
-                StringBuilder response = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    response.append(line);
-                }
-                reader.close();
+        /**
+         * Pass every recorded rate of a currency within a period to the sink, oldest first
+         * @return The number of recorded rates in the period
+         */
+        public int scanRateHistory(int currency, long fromMillis, long toMillis, RateHistoryStore.RatePointSink sink) {
+            RateHistoryStore store = rateHistoryStore;
+            if (store == null) {
+                return 0;
+            }
+            try {
+                return store.scan(currency, fromMillis, toMillis, sink);
+            } catch (IOException e) {
+                Logger.error("Failed to read exchange rate history: " + e.getMessage());
+                return 0;
+            }
+        }
 
-                // Parse JSON response
-                org.json.simple.parser.JSONParser parser = new org.json.simple.parser.JSONParser();
-                org.json.simple.JSONObject jsonObject = (org.json.simple.JSONObject) parser.parse(response.toString());
-                org.json.simple.JSONObject rates = (org.json.simple.JSONObject) jsonObject.get("rates");
+        /**
+         * Start refreshing all rates in the background ahead of cache expiry,
+         * so lookups are served from the cache in steady state
+         */
+        public synchronized void startBackgroundRefresh() {
+            if (refreshScheduler != null) {
+                return;
+            }
+            refreshScheduler = java.util.concurrent.Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "exchange-rate-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refreshScheduler.scheduleWithFixedDelay(this::refreshRates, 0, REFRESH_AHEAD_MINUTES,
+                    java.util.concurrent.TimeUnit.MINUTES);
+        }
 
-                if (rates != null && rates.containsKey(currency)) {
-                    double rate = ((Number) rates.get(currency)).doubleValue();
-                    System.out.println("Fetched rate from API for " + currency + ": " + rate);
-                    return rate;
-                } else {
-                    throw new Exception("Currency not found in API response");
+        /**
+         * Stop the background refresh task, wait for a fetch in flight, then stop recording
+         * history, so the history store can be closed once this returns
+         */
+        public void shutdown() {
+            java.util.concurrent.ScheduledExecutorService scheduler;
+            synchronized (this) {
+                scheduler = refreshScheduler;
+                refreshScheduler = null;
+            }
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+            fetchExecutor.shutdown();
+            try {
+                if (!fetchExecutor.awaitTermination(CONNECT_TIMEOUT_MILLIS + READ_TIMEOUT_MILLIS,
+                        java.util.concurrent.TimeUnit.MILLISECONDS)) {
+                    Logger.warn("Exchange rate fetch still running at shutdown");
                 }
-            } catch (Exception e) {
-                System.out.println("API fetch failed: " + e.getMessage());
-                throw e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // History is recorded while holding this lock, so once it is held no append is in progress
+            synchronized (this) {
+                rateHistoryStore = null;
             }
         }
 
         /**
          * Clear the exchange rate cache
          */
-        public void clearCache() {
-            exchangeRateCache.clear();
+        public synchronized void clearCache() {
+            rateSnapshot = RateSnapshot.EMPTY;
+            for (int i = 0; i < missUntilNanos.length(); i++) {
+                missUntilNanos.set(i, 0);
+            }
             System.out.println("Exchange rate cache cleared");
         }
     }
@@ -1402,8 +2163,10 @@ public class MainApplication {
     // Inefficient and non-best-practice version of CurrencyExchangeServiceV2
     static class CurrencyExchangeServiceV2 {
         private Map<String, Double> cache = new HashMap<>();
+        private Map<String, DetailedRate> detailCache = new HashMap<>();
         private static final String BASE = "USD";
         private static final String KEY = "demo";
+        private final RateStreamParser parser = new RateStreamParser();
         // Fallback rates
         private static final Map<String, Double> RATES = new HashMap<String, Double>();
         static {
@@ -1447,15 +2210,22 @@ public class MainApplication {
             return (amount * r1) / r2;
         }
 
+        public DetailedRate getDetailedRateV2(String currency) {
+            if (currency == null) return null;
+            String c = currency.toUpperCase();
+            DetailedRate d = detailCache.get(c);
+            if (d != null) return d;
+            double r = getExchangeRateV2(c);
+            if (r == 0.0) return null;
+            d = DetailedRate.of(r);
+            detailCache.put(c, d);
+            return d;
+        }
+
         public Map<String, Double> getDetailedExchangeRatesV2(String currency) {
-            Map<String, Double> m = new HashMap<>();
-            double r = getExchangeRateV2(currency);
-            if (r == 0.0) return m;
-            m.put("mid", r);
-            m.put("buy", r - 0.01 * r);
-            m.put("sell", r + 0.01 * r);
-            m.put("fee", r * 0.005);
-            return m;
+            DetailedRate d = getDetailedRateV2(currency);
+            if (d == null) return new HashMap<>();
+            return d.toMap();
         }
 
         public List<String> getSupportedCurrenciesV2() {
@@ -1472,22 +2242,21 @@ public class MainApplication {
             c.setRequestMethod("GET");
             int s = c.getResponseCode();
             if (s != 200) throw new Exception("bad");
-            java.io.BufferedReader r = new java.io.BufferedReader(new java.io.InputStreamReader(c.getInputStream()));
-            String line, all = "";
-            while ((line = r.readLine()) != null) all += line;
-            r.close();
-            // Very inefficient JSON parsing
-            int idx = all.indexOf("\"" + currency + "\":");
-            if (idx == -1) throw new Exception("not found");
-            int start = idx + currency.length() + 3;
-            int end = start;
-            while (end < all.length() && (Character.isDigit(all.charAt(end)) || all.charAt(end)=='.')) end++;
-            String num = all.substring(start, end);
-            return Double.parseDouble(num);
+            int target = CurrencyRegistry.parse(currency);
+            if (target < 0) throw new Exception("not found");
+            double[] found = {0.0};
+            try (java.io.InputStream in = c.getInputStream()) {
+                parser.parse(in, (ordinal, rate) -> {
+                    if (ordinal == target) found[0] = rate;
+                });
+            }
+            if (found[0] == 0.0) throw new Exception("not found");
+            return found[0];
         }
 
         public void clearCacheV2() {
             cache.clear();
+            detailCache.clear();
         }
     }
 
@@ -1513,90 +2282,3616 @@ public class MainApplication {
     }
 
     /**
-     * Service for detecting fraudulent cheque activities.
-     * Implements various fraud detection mechanisms and uses ChequeHistoryManager.
+     * Immutable mid, buy and sell rates and fee rate for one currency.
+     * Derived once when a rate is cached, so each cheque reads it without allocating.
      */
-    static class FraudDetectionService {
-        private FraudDetection fraudDetection;
-        private ChequeHistoryManager historyManager;
-        private Map<String, List<ChequeTransaction>> recentTransactions;
+    static final class DetailedRate {
+        private static final double BUY_SPREAD = 0.99;  // Buy slightly below the mid rate
+        private static final double SELL_SPREAD = 1.01; // Sell slightly above the mid rate
+        private static final double FEE_RATE = 0.005;   // 0.5% fee
 
-        // Fraud detection thresholds
-        private static final int VELOCITY_CHECK_DAYS = 7;
-        private static final int VELOCITY_THRESHOLD = 5;
-        private static final double PATTERN_THRESHOLD = 0.95; // 95% similarity threshold
-        private static final double SIMILAR_AMOUNT_THRESHOLD = 0.90; // 90% similarity threshold
-        private static final int UNUSUAL_FREQUENCY_THRESHOLD = 3; // 3x normal frequency
+        static final DetailedRate BASE = of(1.0);
 
-        // Fraud alert levels
-        public enum AlertLevel {
-            LOW,
-            MEDIUM,
-            HIGH,
-            CRITICAL
-        }
+        private final double mid;
+        private final double buy;
+        private final double sell;
+        private final double fee;
+        // Fixed-point copies for Money arithmetic
+        private final long scaledBuy;
+        private final long scaledFee;
 
-        public FraudDetectionService() {
-            this.fraudDetection = new FraudDetection();
-            this.recentTransactions = new HashMap<>();
+        private DetailedRate(double mid, double buy, double sell, double fee) {
+            this.mid = mid;
+            this.buy = buy;
+            this.sell = sell;
+            this.fee = fee;
+            this.scaledBuy = Money.toScaledRate(buy);
+            this.scaledFee = Money.toScaledRate(fee);
         }
 
-        public void setHistoryManager(ChequeHistoryManager historyManager) {
-            this.historyManager = historyManager;
+        static DetailedRate of(double mid) {
+            return new DetailedRate(mid, mid * BUY_SPREAD, mid * SELL_SPREAD, mid * FEE_RATE);
         }
 
-        public boolean isFraudulentCheque(String accountId, String chequeNumber, double amount) {
-            boolean isDuplicate = checkDuplicateCheque(accountId, chequeNumber);
-            boolean isAbnormal = checkAbnormalAmount(amount);
-            boolean isSuspicious = checkSuspiciousActivity(accountId, amount);
-            boolean isVelocityFraud = checkVelocityFraud(accountId, amount);
-            boolean isPatternFraud = checkPatternFraud(accountId, amount);
-
-            boolean isHistoricalDuplicate = false;
-            boolean isUnusualFrequency = false;
-            boolean isSimilarToRecent = false;
-
-            if (historyManager != null) {
-                isHistoricalDuplicate = checkHistoricalDuplicate(accountId, chequeNumber);
-                isUnusualFrequency = checkUnusualFrequency(accountId);
-                isSimilarToRecent = checkSimilarToRecent(accountId, amount);
-            }
-
-            logFraudChecks(accountId, chequeNumber, amount, isDuplicate, isAbnormal,
-                    isSuspicious, isVelocityFraud, isPatternFraud,
-                    isHistoricalDuplicate, isUnusualFrequency, isSimilarToRecent);
-
-            AlertLevel alertLevel = determineAlertLevel(isDuplicate, isAbnormal,
-                    isSuspicious, isVelocityFraud, isPatternFraud,
-                    isHistoricalDuplicate, isUnusualFrequency, isSimilarToRecent);
+        public double getMid() {
+            return mid;
+        }
 
-            System.out.println("Fraud Alert Level: " + alertLevel);
+        public double getBuy() {
+            return buy;
+        }
 
-            return isDuplicate || isAbnormal || isSuspicious || isVelocityFraud || isPatternFraud ||
-                    isHistoricalDuplicate || isUnusualFrequency || isSimilarToRecent;
+        public double getSell() {
+            return sell;
         }
 
-        private boolean checkDuplicateCheque(String accountId, String chequeNumber) {
-            return fraudDetection.isDuplicateCheque(accountId, chequeNumber);
+        public double getFee() {
+            return fee;
         }
 
-        private boolean checkAbnormalAmount(double amount) {
-            return fraudDetection.isAbnormalAmount(amount);
+        /**
+         * @return The buy rate scaled by Money.RATE_SCALE
+         */
+        public long getScaledBuy() {
+            return scaledBuy;
         }
 
-        private boolean checkSuspiciousActivity(String accountId, double amount) {
-            return fraudDetection.isSuspiciousActivity(accountId, amount);
+        /**
+         * @return The fee rate scaled by Money.RATE_SCALE
+         */
+        public long getScaledFee() {
+            return scaledFee;
         }
 
-        private boolean checkVelocityFraud(String accountId, double amount) {
-            if (!recentTransactions.containsKey(accountId)) {
+        /**
+         * @return The rates keyed by "mid", "buy", "sell" and "fee", as the map-based APIs expose them
+         */
+        Map<String, Double> toMap() {
+            Map<String, Double> detailedRates = new HashMap<>();
+            detailedRates.put("mid", mid);
+            detailedRates.put("buy", buy);
+            detailedRates.put("sell", sell);
+            detailedRates.put("fee", fee);
+            return detailedRates;
+        }
+    }
+
+    /**
+     * Single-pass parser for exchange-rate responses shaped like {"rates": {"EUR": 0.92, ...}}.
+     * It reads raw bytes from a stream or a ByteBuffer, skips everything before the "rates"
+     * object, and hands each ISO 4217 currency and rate to a sink without building strings
+     * or a JSON tree. Codes not in CurrencyRegistry are skipped.
+     */
+    static final class RateStreamParser {
+        private static final byte[] RATES_KEY = {'r', 'a', 't', 'e', 's'};
+        private static final double[] POWERS_OF_TEN = {
+                1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+        private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+        /**
+         * Receives each parsed currency and rate.
+         */
+        interface RateSink {
+            void accept(int currency, double rate);
+        }
+
+        private final byte[] buffer;
+        private final byte[] number = new byte[64];
+        private java.io.InputStream in;
+        private java.nio.ByteBuffer bytes;
+        private int position;
+        private int limit;
+
+        RateStreamParser() {
+            this(8192);
+        }
+
+        RateStreamParser(int bufferSize) {
+            this.buffer = new byte[bufferSize];
+        }
+
+        /**
+         * @return The number of supported currencies passed to the sink
+         * @throws IOException If the stream fails or has no well-formed "rates" object
+         */
+        int parse(java.io.InputStream in, RateSink sink) throws IOException {
+            this.in = in;
+            this.bytes = null;
+            this.position = 0;
+            this.limit = 0;
+            return parseDocument(sink);
+        }
+
+        int parse(java.nio.ByteBuffer bytes, RateSink sink) throws IOException {
+            this.in = null;
+            this.bytes = bytes;
+            return parseDocument(sink);
+        }
+
+        private int parseDocument(RateSink sink) throws IOException {
+            int b;
+            while ((b = read()) != -1) {
+                if (b != '"') {
+                    continue;
+                }
+                boolean isRatesKey = readStringMatching(RATES_KEY);
+                int next = skipWhitespace();
+                if (next == -1) {
+                    break;
+                }
+                if (next == ':' && isRatesKey) {
+                    if (skipWhitespace() == '{') {
+                        return parseRates(sink);
+                    }
+                    // A "rates" key whose value is not an object; keep looking
+                }
+                unread();
+            }
+            throw new IOException("Rates missing from API response");
+        }
+
+        private int parseRates(RateSink sink) throws IOException {
+            int count = 0;
+            while (true) {
+                int b = skipWhitespace();
+                if (b == '}') {
+                    return count;
+                }
+                if (b == ',') {
+                    continue;
+                }
+                if (b != '"') {
+                    throw new IOException("Malformed rates object");
+                }
+                int c0 = 0;
+                int c1 = 0;
+                int c2 = 0;
+                int length = 0;
+                boolean escaped = false;
+                while ((b = read()) != '"') {
+                    if (b == -1) {
+                        throw new IOException("Unterminated string");
+                    }
+                    if (b == '\\') {
+                        // Escaped keys are never currency codes
+                        read();
+                        escaped = true;
+                        continue;
+                    }
+                    if (length == 0) {
+                        c0 = b;
+                    } else if (length == 1) {
+                        c1 = b;
+                    } else if (length == 2) {
+                        c2 = b;
+                    }
+                    length++;
+                }
+                int currency = length == 3 && !escaped ? CurrencyRegistry.parseAscii(c0, c1, c2) : -1;
+                if (skipWhitespace() != ':') {
+                    throw new IOException("Malformed rates object");
+                }
+                double rate = readNumber();
+                if (Double.isNaN(rate) || !atValueEnd()) {
+                    // One bad entry should not cost every other rate in the response
+                    skipValue();
+                    Logger.warn("Skipped malformed exchange rate"
+                            + (currency >= 0 ? " for " + CurrencyRegistry.code(currency) : ""));
+                    continue;
+                }
+                if (currency >= 0) {
+                    sink.accept(currency, rate);
+                    count++;
+                }
+            }
+        }
+
+        /**
+         * @return The number, or NaN if the value is malformed, in which case it may be partly consumed
+         */
+        private double readNumber() throws IOException {
+            int b = skipWhitespace();
+            boolean negative = b == '-';
+            if (negative) {
+                b = read();
+            }
+            long mantissa = 0;
+            int scale = 0;
+            int digits = 0;
+            int length = 0;
+            boolean exact = true;
+            boolean fraction = false;
+            while (true) {
+                if (b >= '0' && b <= '9') {
+                    if (mantissa < MAX_EXACT_MANTISSA / 10) {
+                        mantissa = mantissa * 10 + (b - '0');
+                        if (fraction) {
+                            scale++;
+                        }
+                    } else {
+                        exact = false;
+                    }
+                    digits++;
+                } else if (b == '.' && !fraction) {
+                    fraction = true;
+                } else if (b == 'e' || b == 'E' || b == '+' || (b == '-' && length > 0)) {
+                    exact = false;
+                } else {
+                    break;
+                }
+                if (length < number.length) {
+                    number[length++] = (byte) b;
+                } else {
+                    return Double.NaN;
+                }
+                b = read();
+            }
+            if (b != -1) {
+                unread();
+            }
+            if (digits == 0) {
+                return Double.NaN;
+            }
+            double value;
+            if (exact && scale < POWERS_OF_TEN.length) {
+                // Both operands are exact doubles, so one division is correctly rounded
+                value = mantissa / POWERS_OF_TEN[scale];
+            } else {
+                try {
+                    value = Double.parseDouble(new String(number, 0, length, StandardCharsets.US_ASCII));
+                } catch (NumberFormatException ex) {
+                    return Double.NaN;
+                }
+            }
+            return negative ? -value : value;
+        }
+
+        /**
+         * @return true if the next significant byte ends a value in the rates object
+         */
+        private boolean atValueEnd() throws IOException {
+            int b = skipWhitespace();
+            if (b != -1) {
+                unread();
+            }
+            return b == ',' || b == '}';
+        }
+
+        /**
+         * Skips the rest of a value, including any nested string, object or array,
+         * stopping before the comma or brace that ends it.
+         */
+        private void skipValue() throws IOException {
+            int depth = 0;
+            int b;
+            while ((b = read()) != -1) {
+                if (b == '"') {
+                    // Consumes the string, escapes included; its content does not matter here
+                    readStringMatching(RATES_KEY);
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if ((b == '}' || b == ']') && depth > 0) {
+                    depth--;
+                } else if (depth == 0 && (b == ',' || b == '}')) {
+                    unread();
+                    return;
+                }
+            }
+            throw new IOException("Malformed rates object");
+        }
+
+        /**
+         * Reads the rest of a string whose opening quote was consumed.
+         * @return true if its content equals the expected bytes
+         */
+        private boolean readStringMatching(byte[] expected) throws IOException {
+            int index = 0;
+            boolean matches = true;
+            int b;
+            while ((b = read()) != '"') {
+                if (b == -1) {
+                    throw new IOException("Unterminated string");
+                }
+                if (b == '\\') {
+                    read();
+                    matches = false;
+                    continue;
+                }
+                if (index >= expected.length || expected[index] != b) {
+                    matches = false;
+                }
+                index++;
+            }
+            return matches && index == expected.length;
+        }
+
+        private int skipWhitespace() throws IOException {
+            int b;
+            do {
+                b = read();
+            } while (b == ' ' || b == '\n' || b == '\r' || b == '\t');
+            return b;
+        }
+
+        private int read() throws IOException {
+            if (bytes != null) {
+                return bytes.hasRemaining() ? bytes.get() & 0xFF : -1;
+            }
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        /**
+         * Steps back over the byte just read; only valid directly after a successful read.
+         */
+        private void unread() {
+            if (bytes != null) {
+                bytes.position(bytes.position() - 1);
+            } else {
+                position--;
+            }
+        }
+    }
+
+    /**
+     * A source of exchange rates quoted against the base currency.
+     */
+    interface RateProvider {
+        String getName();
+
+        /**
+         * Fetches every rate the source has and passes each one to the sink.
+         * @return The number of rates passed to the sink
+         * @throws Exception If the source is unavailable or its data is malformed
+         */
+        int fetchRates(RateStreamParser.RateSink sink) throws Exception;
+    }
+
+    /**
+     * Fetches rates from an HTTP endpoint returning an open.er-api style JSON document.
+     */
+    static class HttpRateProvider implements RateProvider {
+        private final String url;
+        private final int connectTimeoutMillis;
+        private final int readTimeoutMillis;
+        private final RateStreamParser parser = new RateStreamParser();
+
+        public HttpRateProvider(String url, int connectTimeoutMillis, int readTimeoutMillis) {
+            this.url = url;
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            this.readTimeoutMillis = readTimeoutMillis;
+        }
+
+        @Override
+        public String getName() {
+            return "HTTP " + url;
+        }
+
+        @Override
+        public synchronized int fetchRates(RateStreamParser.RateSink sink) throws Exception {
+            java.net.HttpURLConnection connection = (java.net.HttpURLConnection) new java.net.URL(url).openConnection();
+            try {
+                connection.setRequestMethod("GET");
+                connection.setConnectTimeout(connectTimeoutMillis);
+                connection.setReadTimeout(readTimeoutMillis);
+
+                int status = connection.getResponseCode();
+                if (status != 200) {
+                    throw new Exception("API returned status code: " + status);
+                }
+
+                // Parse the JSON response as it streams in
+                try (java.io.InputStream in = connection.getInputStream()) {
+                    return parser.parse(in, sink);
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Reads rates from a local JSON file in the same format as the HTTP API,
+     * e.g. a copy saved from the last good response.
+     */
+    static class FileRateProvider implements RateProvider {
+        private final java.nio.file.Path file;
+        private final RateStreamParser parser = new RateStreamParser();
+
+        public FileRateProvider(java.nio.file.Path file) {
+            this.file = file;
+        }
+
+        @Override
+        public String getName() {
+            return "file " + file;
+        }
+
+        @Override
+        public synchronized int fetchRates(RateStreamParser.RateSink sink) throws Exception {
+            try (java.io.InputStream in = java.nio.file.Files.newInputStream(file)) {
+                return parser.parse(in, sink);
+            }
+        }
+    }
+
+    /**
+     * Circuit breaker guarding one rate provider. After enough consecutive failures it opens
+     * and rejects calls immediately; once the open period has passed a single trial call is let
+     * through, and its outcome closes or re-opens the circuit.
+     */
+    static class CircuitBreaker {
+        enum State {
+            CLOSED,
+            OPEN,
+            HALF_OPEN
+        }
+
+        private final int failureThreshold;
+        private final long openMillis;
+        private State state = State.CLOSED;
+        private int consecutiveFailures;
+        private long openedAt;
+
+        /**
+         * @param failureThreshold Consecutive failures that open the circuit
+         * @param openMillis How long the circuit stays open before a trial call
+         */
+        public CircuitBreaker(int failureThreshold, long openMillis) {
+            if (failureThreshold <= 0 || openMillis < 0) {
+                throw new IllegalArgumentException("Failure threshold must be positive and open period non-negative");
+            }
+            this.failureThreshold = failureThreshold;
+            this.openMillis = openMillis;
+        }
+
+        /**
+         * @return true if the caller may try the provider now
+         */
+        public synchronized boolean allowRequest() {
+            if (state == State.CLOSED) {
+                return true;
+            }
+            if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+                state = State.HALF_OPEN;
+                return true;
+            }
+            // Open, or half-open with the trial call still outstanding
+            return false;
+        }
+
+        public synchronized void recordSuccess() {
+            consecutiveFailures = 0;
+            state = State.CLOSED;
+        }
+
+        public synchronized void recordFailure() {
+            consecutiveFailures++;
+            if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+                state = State.OPEN;
+                openedAt = System.currentTimeMillis();
+            }
+        }
+
+        public synchronized State getState() {
+            return state;
+        }
+    }
+
+    /**
+     * Ordered failover over several rate providers, each behind its own circuit breaker.
+     * A provider's rates are staged and only passed on once it has succeeded,
+     * so a provider failing halfway never leaves a mix of sources behind.
+     */
+    static class RateProviderChain implements RateProvider {
+        private static final int DEFAULT_FAILURE_THRESHOLD = 2;
+        private static final long DEFAULT_OPEN_MILLIS = 5 * 60 * 1000; // Retry a failed provider after 5 minutes
+
+        private final List<RateProvider> providers;
+        private final List<CircuitBreaker> breakers = new ArrayList<>();
+
+        public RateProviderChain(List<RateProvider> providers) {
+            this(providers, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+        }
+
+        public RateProviderChain(List<RateProvider> providers, int failureThreshold, long openMillis) {
+            if (providers.isEmpty()) {
+                throw new IllegalArgumentException("At least one rate provider is required");
+            }
+            this.providers = new ArrayList<>(providers);
+            for (int i = 0; i < providers.size(); i++) {
+                breakers.add(new CircuitBreaker(failureThreshold, openMillis));
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "rate provider chain";
+        }
+
+        /**
+         * Tries each provider in order, skipping any whose circuit is open.
+         * @throws Exception The last failure if no provider succeeded
+         */
+        @Override
+        public int fetchRates(RateStreamParser.RateSink sink) throws Exception {
+            Exception lastFailure = null;
+            double[] staged = new double[CurrencyRegistry.count()];
+            for (int i = 0; i < providers.size(); i++) {
+                RateProvider provider = providers.get(i);
+                CircuitBreaker breaker = breakers.get(i);
+                if (!breaker.allowRequest()) {
+                    Logger.debug("Skipping " + provider.getName() + ": circuit open");
+                    continue;
+                }
+                Arrays.fill(staged, 0.0);
+                try {
+                    provider.fetchRates((currency, rate) -> staged[currency] = rate);
+                    breaker.recordSuccess();
+                } catch (Exception e) {
+                    breaker.recordFailure();
+                    Logger.warn("Rate provider " + provider.getName() + " failed: " + e.getMessage());
+                    lastFailure = e;
+                    continue;
+                }
+                int count = 0;
+                for (int currency = 0; currency < staged.length; currency++) {
+                    if (staged[currency] > 0) {
+                        sink.accept(currency, staged[currency]);
+                        count++;
+                    }
+                }
+                if (i > 0) {
+                    Logger.info("Exchange rates served by " + provider.getName());
+                }
+                return count;
+            }
+            throw lastFailure != null ? lastFailure : new Exception("All rate providers are unavailable");
+        }
+
+        public CircuitBreaker.State getState(int providerIndex) {
+            return breakers.get(providerIndex).getState();
+        }
+    }
+
+    /**
+     * Local HTTP stand-in for the exchange-rate API, serving a configurable rate table on the
+     * loopback interface. Responses can be delayed or failed on demand, so provider failover
+     * and its latency can be exercised without network access.
+     */
+    static class LocalRateServer implements AutoCloseable {
+        private final com.sun.net.httpserver.HttpServer server;
+        private volatile byte[] body;
+        private volatile int status = 200;
+        private volatile long delayMillis;
+
+        public LocalRateServer(Map<String, Double> rates) throws IOException {
+            this.server = com.sun.net.httpserver.HttpServer.create(
+                    new java.net.InetSocketAddress(java.net.InetAddress.getLoopbackAddress(), 0), 0);
+            setRates(rates);
+            server.createContext("/", this::handle);
+            server.start();
+        }
+
+        /**
+         * @return The URL of the latest-rates endpoint, with the port chosen at startup
+         */
+        public String getUrl() {
+            return "http://127.0.0.1:" + server.getAddress().getPort() + "/v6/latest/USD";
+        }
+
+        public void setRates(Map<String, Double> rates) {
+            StringBuilder json = new StringBuilder("{\"result\":\"success\",\"base_code\":\"USD\",\"rates\":{\"USD\":1");
+            for (Map.Entry<String, Double> entry : rates.entrySet()) {
+                json.append(",\"").append(entry.getKey()).append("\":").append(entry.getValue());
+            }
+            json.append("}}");
+            this.body = json.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Makes every response fail with the given HTTP status; 200 restores normal responses.
+         */
+        public void setStatus(int status) {
+            this.status = status;
+        }
+
+        /**
+         * Holds every response for the given time, e.g. to stand in for a hanging API.
+         */
+        public void setDelayMillis(long delayMillis) {
+            this.delayMillis = delayMillis;
+        }
+
+        private void handle(com.sun.net.httpserver.HttpExchange exchange) throws IOException {
+            try {
+                if (delayMillis > 0) {
+                    try {
+                        Thread.sleep(delayMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (status != 200) {
+                    exchange.sendResponseHeaders(status, -1);
+                    return;
+                }
+                byte[] response = body;
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, response.length);
+                exchange.getResponseBody().write(response);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Append-only time series of every fetched exchange rate, one memory-mapped file per currency.
+     * Each point is 12 bytes: seconds since the series' first point and the rate in fixed point,
+     * so a lookup at time T is a binary search straight over the mapped file.
+     */
+    static class RateHistoryStore implements AutoCloseable {
+        private static final int MAGIC = 0x52415445; // "RATE"
+        private static final int HEADER_BYTES = 16;  // magic, point count, base timestamp
+        private static final int COUNT_OFFSET = 4;
+        private static final int BASE_OFFSET = 8;
+        private static final int POINT_BYTES = Integer.BYTES + Long.BYTES;
+        private static final int INITIAL_CAPACITY = 4096; // Points mapped before the first growth
+        private static final double RATE_SCALE = 1e9;     // Nine decimal places of fixed point
+
+        /**
+         * Receives the points of a range scan in time order.
+         */
+        interface RatePointSink {
+            void accept(long epochMillis, double rate);
+        }
+
+        private final java.nio.file.Path directory;
+        private final Series[] series = new Series[CurrencyRegistry.count()];
+
+        public RateHistoryStore(java.nio.file.Path directory) throws IOException {
+            this.directory = java.nio.file.Files.createDirectories(directory);
+        }
+
+        /**
+         * Appends a rate observed at the given time. Points must arrive in time order;
+         * one that is older than the latest point of its currency is ignored.
+         */
+        public synchronized void append(int currency, long epochMillis, double rate) throws IOException {
+            Series s = series(currency, true);
+            long epochSeconds = Math.floorDiv(epochMillis, 1000L);
+            if (s.count == 0) {
+                s.setBase(epochSeconds);
+            }
+            long delta = epochSeconds - s.baseSeconds;
+            if (delta < s.lastDelta()) {
+                return;
+            }
+            if (delta > Integer.MAX_VALUE) {
+                throw new IOException("Rate history for " + CurrencyRegistry.code(currency) + " spans too long a period");
+            }
+            s.ensureCapacity(s.count + 1);
+            int offset = HEADER_BYTES + s.count * POINT_BYTES;
+            s.buffer.putInt(offset, (int) delta);
+            s.buffer.putLong(offset + Integer.BYTES, Math.round(rate * RATE_SCALE));
+            // The count is bumped after the point is written, so a crash never exposes a torn point
+            s.count++;
+            s.buffer.putInt(COUNT_OFFSET, s.count);
+        }
+
+        /**
+         * @return The rate in force at the given time, i.e. the latest point at or before it,
+         *         or 0.0 if the currency has no point that early
+         */
+        public synchronized double rateAt(int currency, long epochMillis) throws IOException {
+            Series s = series(currency, false);
+            if (s == null || s.count == 0) {
+                return 0.0;
+            }
+            long delta = Math.floorDiv(epochMillis, 1000L) - s.baseSeconds;
+            int index = s.lastIndexAtOrBefore(delta);
+            return index < 0 ? 0.0 : s.rate(index);
+        }
+
+        /**
+         * Passes every point from fromMillis to toMillis, both inclusive, to the sink.
+         * @return The number of points scanned
+         */
+        public synchronized int scan(int currency, long fromMillis, long toMillis, RatePointSink sink) throws IOException {
+            Series s = series(currency, false);
+            if (s == null || s.count == 0 || fromMillis > toMillis) {
+                return 0;
+            }
+            long toDelta = Math.floorDiv(toMillis, 1000L) - s.baseSeconds;
+            // First point whose whole second is not before fromMillis
+            int first = s.lastIndexAtOrBefore(Math.floorDiv(fromMillis - 1, 1000L) - s.baseSeconds) + 1;
+            int scanned = 0;
+            for (int i = first; i < s.count; i++) {
+                long delta = s.delta(i);
+                if (delta > toDelta) {
+                    break;
+                }
+                sink.accept((s.baseSeconds + delta) * 1000L, s.rate(i));
+                scanned++;
+            }
+            return scanned;
+        }
+
+        public synchronized int size(int currency) throws IOException {
+            Series s = series(currency, false);
+            return s == null ? 0 : s.count;
+        }
+
+        /**
+         * Flushes every mapped series to disk and closes the files.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            for (int i = 0; i < series.length; i++) {
+                if (series[i] != null) {
+                    series[i].buffer.force();
+                    series[i].channel.close();
+                    series[i] = null;
+                }
+            }
+        }
+
+        private Series series(int currency, boolean create) throws IOException {
+            if (currency < 0 || currency >= series.length) {
+                throw new IllegalArgumentException("Unknown currency ordinal: " + currency);
+            }
+            Series s = series[currency];
+            if (s == null) {
+                java.nio.file.Path file = directory.resolve(CurrencyRegistry.code(currency) + ".rates");
+                if (!create && !java.nio.file.Files.exists(file)) {
+                    return null;
+                }
+                s = new Series(file);
+                series[currency] = s;
+            }
+            return s;
+        }
+
+        /**
+         * One currency's mapped file. The mapping is replaced by a larger one when it fills up.
+         */
+        private static final class Series {
+            private final java.nio.channels.FileChannel channel;
+            private java.nio.MappedByteBuffer buffer;
+            private int capacity;
+            private int count;
+            private long baseSeconds;
+
+            Series(java.nio.file.Path file) throws IOException {
+                this.channel = java.nio.channels.FileChannel.open(file,
+                        java.nio.file.StandardOpenOption.CREATE,
+                        java.nio.file.StandardOpenOption.READ,
+                        java.nio.file.StandardOpenOption.WRITE);
+                long existingBytes = channel.size();
+                long existingPoints = Math.max(0, (existingBytes - HEADER_BYTES) / POINT_BYTES);
+                map((int) Math.max(INITIAL_CAPACITY, existingPoints));
+                if (existingBytes >= HEADER_BYTES && buffer.getInt(0) == MAGIC) {
+                    count = buffer.getInt(COUNT_OFFSET);
+                    baseSeconds = buffer.getLong(BASE_OFFSET);
+                } else {
+                    buffer.putInt(0, MAGIC);
+                    buffer.putInt(COUNT_OFFSET, 0);
+                }
+            }
+
+            void setBase(long epochSeconds) {
+                baseSeconds = epochSeconds;
+                buffer.putLong(BASE_OFFSET, epochSeconds);
+            }
+
+            void ensureCapacity(int points) throws IOException {
+                if (points > capacity) {
+                    map(Math.max(points, capacity * 2));
+                }
+            }
+
+            private void map(int points) throws IOException {
+                buffer = channel.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 0,
+                        HEADER_BYTES + (long) points * POINT_BYTES);
+                capacity = points;
+            }
+
+            long delta(int index) {
+                return buffer.getInt(HEADER_BYTES + index * POINT_BYTES);
+            }
+
+            double rate(int index) {
+                return buffer.getLong(HEADER_BYTES + index * POINT_BYTES + Integer.BYTES) / RATE_SCALE;
+            }
+
+            long lastDelta() {
+                return count == 0 ? Long.MIN_VALUE : delta(count - 1);
+            }
+
+            /**
+             * @return The index of the last point at or before delta, or -1 if there is none
+             */
+            int lastIndexAtOrBefore(long delta) {
+                int low = 0;
+                int high = count - 1;
+                while (low <= high) {
+                    int mid = (low + high) >>> 1;
+                    if (delta(mid) <= delta) {
+                        low = mid + 1;
+                    } else {
+                        high = mid - 1;
+                    }
+                }
+                return high;
+            }
+        }
+    }
+
+    /**
+     * Registry of ISO 4217 currencies. Each currency is identified inside the pipeline by its
+     * ordinal, an index into this table, so lookups and comparisons are plain int operations.
+     * Codes are parsed once at intake without allocating; unknown codes parse to -1.
+     */
+    static final class CurrencyRegistry {
+        // Alphabetic code, numeric code, minor-unit digits (-1 where ISO 4217 defines none)
+        private static final Object[][] ISO_4217 = {
+                {"AED", 784, 2}, {"AFN", 971, 2}, {"ALL", 8, 2}, {"AMD", 51, 2}, {"ANG", 532, 2}, {"AOA", 973, 2},
+                {"ARS", 32, 2}, {"AUD", 36, 2}, {"AWG", 533, 2}, {"AZN", 944, 2}, {"BAM", 977, 2}, {"BBD", 52, 2},
+                {"BDT", 50, 2}, {"BGN", 975, 2}, {"BHD", 48, 3}, {"BIF", 108, 0}, {"BMD", 60, 2}, {"BND", 96, 2},
+                {"BOB", 68, 2}, {"BOV", 984, 2}, {"BRL", 986, 2}, {"BSD", 44, 2}, {"BTN", 64, 2}, {"BWP", 72, 2},
+                {"BYN", 933, 2}, {"BZD", 84, 2}, {"CAD", 124, 2}, {"CDF", 976, 2}, {"CHE", 947, 2}, {"CHF", 756, 2},
+                {"CHW", 948, 2}, {"CLF", 990, 4}, {"CLP", 152, 0}, {"CNY", 156, 2}, {"COP", 170, 2}, {"COU", 970, 2},
+                {"CRC", 188, 2}, {"CUC", 931, 2}, {"CUP", 192, 2}, {"CVE", 132, 2}, {"CZK", 203, 2}, {"DJF", 262, 0},
+                {"DKK", 208, 2}, {"DOP", 214, 2}, {"DZD", 12, 2}, {"EGP", 818, 2}, {"ERN", 232, 2}, {"ETB", 230, 2},
+                {"EUR", 978, 2}, {"FJD", 242, 2}, {"FKP", 238, 2}, {"GBP", 826, 2}, {"GEL", 981, 2}, {"GHS", 936, 2},
+                {"GIP", 292, 2}, {"GMD", 270, 2}, {"GNF", 324, 0}, {"GTQ", 320, 2}, {"GYD", 328, 2}, {"HKD", 344, 2},
+                {"HNL", 340, 2}, {"HTG", 332, 2}, {"HUF", 348, 2}, {"IDR", 360, 2}, {"ILS", 376, 2}, {"INR", 356, 2},
+                {"IQD", 368, 3}, {"IRR", 364, 2}, {"ISK", 352, 0}, {"JMD", 388, 2}, {"JOD", 400, 3}, {"JPY", 392, 0},
+                {"KES", 404, 2}, {"KGS", 417, 2}, {"KHR", 116, 2}, {"KMF", 174, 0}, {"KPW", 408, 2}, {"KRW", 410, 0},
+                {"KWD", 414, 3}, {"KYD", 136, 2}, {"KZT", 398, 2}, {"LAK", 418, 2}, {"LBP", 422, 2}, {"LKR", 144, 2},
+                {"LRD", 430, 2}, {"LSL", 426, 2}, {"LYD", 434, 3}, {"MAD", 504, 2}, {"MDL", 498, 2}, {"MGA", 969, 2},
+                {"MKD", 807, 2}, {"MMK", 104, 2}, {"MNT", 496, 2}, {"MOP", 446, 2}, {"MRU", 929, 2}, {"MUR", 480, 2},
+                {"MVR", 462, 2}, {"MWK", 454, 2}, {"MXN", 484, 2}, {"MXV", 979, 2}, {"MYR", 458, 2}, {"MZN", 943, 2},
+                {"NAD", 516, 2}, {"NGN", 566, 2}, {"NIO", 558, 2}, {"NOK", 578, 2}, {"NPR", 524, 2}, {"NZD", 554, 2},
+                {"OMR", 512, 3}, {"PAB", 590, 2}, {"PEN", 604, 2}, {"PGK", 598, 2}, {"PHP", 608, 2}, {"PKR", 586, 2},
+                {"PLN", 985, 2}, {"PYG", 600, 0}, {"QAR", 634, 2}, {"RON", 946, 2}, {"RSD", 941, 2}, {"RUB", 643, 2},
+                {"RWF", 646, 0}, {"SAR", 682, 2}, {"SBD", 90, 2}, {"SCR", 690, 2}, {"SDG", 938, 2}, {"SEK", 752, 2},
+                {"SGD", 702, 2}, {"SHP", 654, 2}, {"SLE", 925, 2}, {"SLL", 694, 2}, {"SOS", 706, 2}, {"SRD", 968, 2},
+                {"SSP", 728, 2}, {"STN", 930, 2}, {"SVC", 222, 2}, {"SYP", 760, 2}, {"SZL", 748, 2}, {"THB", 764, 2},
+                {"TJS", 972, 2}, {"TMT", 934, 2}, {"TND", 788, 3}, {"TOP", 776, 2}, {"TRY", 949, 2}, {"TTD", 780, 2},
+                {"TWD", 901, 2}, {"TZS", 834, 2}, {"UAH", 980, 2}, {"UGX", 800, 0}, {"USD", 840, 2}, {"USN", 997, 2},
+                {"UYI", 940, 0}, {"UYU", 858, 2}, {"UYW", 927, 4}, {"UZS", 860, 2}, {"VED", 926, 2}, {"VES", 928, 2},
+                {"VND", 704, 0}, {"VUV", 548, 0}, {"WST", 882, 2}, {"XAF", 950, 0}, {"XAG", 961, -1}, {"XAU", 959, -1},
+                {"XBA", 955, -1}, {"XBB", 956, -1}, {"XBC", 957, -1}, {"XBD", 958, -1}, {"XCD", 951, 2}, {"XDR", 960, -1},
+                {"XOF", 952, 0}, {"XPD", 964, -1}, {"XPF", 953, 0}, {"XPT", 962, -1}, {"XSU", 994, -1}, {"XTS", 963, -1},
+                {"XUA", 965, -1}, {"XXX", 999, -1}, {"YER", 886, 2}, {"ZAR", 710, 2}, {"ZMW", 967, 2}, {"ZWG", 924, 2},
+                {"ZWL", 932, 2}
+        };
+
+        private static final String[] CODES = new String[ISO_4217.length];
+        private static final short[] NUMERIC_CODES = new short[ISO_4217.length];
+        private static final byte[] MINOR_UNITS = new byte[ISO_4217.length];
+        // Ordinal + 1 for every three-letter code, indexed by its base-26 value; 0 means unknown
+        private static final short[] BY_ALPHA_CODE = new short[26 * 26 * 26];
+
+        static {
+            for (int ordinal = 0; ordinal < ISO_4217.length; ordinal++) {
+                CODES[ordinal] = (String) ISO_4217[ordinal][0];
+                NUMERIC_CODES[ordinal] = ((Integer) ISO_4217[ordinal][1]).shortValue();
+                MINOR_UNITS[ordinal] = ((Integer) ISO_4217[ordinal][2]).byteValue();
+                BY_ALPHA_CODE[alphaIndex(CODES[ordinal])] = (short) (ordinal + 1);
+            }
+        }
+
+        static final int USD = parse("USD");
+
+        /**
+         * Parses a currency code, ignoring case and surrounding whitespace.
+         * @param code The alphabetic currency code (e.g., USD, eur)
+         * @return The currency ordinal, or -1 if the code is not an ISO 4217 currency
+         */
+        static int parse(CharSequence code) {
+            if (code == null) {
+                return -1;
+            }
+            int start = 0;
+            int end = code.length();
+            while (start < end && Character.isWhitespace(code.charAt(start))) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(code.charAt(end - 1))) {
+                end--;
+            }
+            if (end - start != 3) {
+                return -1;
+            }
+            return parseAscii(code.charAt(start), code.charAt(start + 1), code.charAt(start + 2));
+        }
+
+        /**
+         * Parses a currency code given as its three characters, ignoring case.
+         * @return The currency ordinal, or -1 if the code is not an ISO 4217 currency
+         */
+        static int parseAscii(int c0, int c1, int c2) {
+            // ASCII lower-case fold; anything that is not a letter lands outside 0..25
+            int l0 = (c0 | 0x20) - 'a';
+            int l1 = (c1 | 0x20) - 'a';
+            int l2 = (c2 | 0x20) - 'a';
+            if (l0 < 0 || l0 >= 26 || l1 < 0 || l1 >= 26 || l2 < 0 || l2 >= 26) {
+                return -1;
+            }
+            return BY_ALPHA_CODE[(l0 * 26 + l1) * 26 + l2] - 1;
+        }
+
+        static String code(int ordinal) {
+            return CODES[ordinal];
+        }
+
+        static int numericCode(int ordinal) {
+            return NUMERIC_CODES[ordinal];
+        }
+
+        /**
+         * @return The number of minor-unit digits, or -1 if the currency has no minor unit
+         */
+        static int minorUnits(int ordinal) {
+            return MINOR_UNITS[ordinal];
+        }
+
+        static int count() {
+            return CODES.length;
+        }
+
+        private static int alphaIndex(String code) {
+            return ((code.charAt(0) - 'A') * 26 + (code.charAt(1) - 'A')) * 26 + (code.charAt(2) - 'A');
+        }
+    }
+
+    /**
+     * Fixed-point money arithmetic on primitive longs, with no allocation on the normal path.
+     * Amounts are held in minor units of their currency (e.g. cents) and rates are scaled by
+     * RATE_SCALE. Every rounding is half-even, so results are exact and deterministic; only
+     * an intermediate product that overflows a long falls back to BigInteger.
+     */
+    static final class Money {
+        static final long RATE_SCALE = 100_000_000L; // Eight decimal places of rate precision
+        private static final long[] POWERS_OF_TEN = {
+                1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L,
+                1_000_000_000L, 10_000_000_000L, 100_000_000_000L, 1_000_000_000_000L};
+
+        private Money() {
+        }
+
+        /**
+         * @return The number of minor-unit digits of the currency; currencies without minor units use 0
+         */
+        static int scale(int currency) {
+            return Math.max(CurrencyRegistry.minorUnits(currency), 0);
+        }
+
+        /**
+         * Converts an amount entered as a decimal number into minor units, rounding half-even.
+         * Used once at intake, where the decimal the user typed matters more than speed.
+         */
+        static long toMinorUnits(double amount, int currency) {
+            // Going through the shortest decimal string avoids binary artefacts such as 0.125 vs 0.12499999
+            return new java.math.BigDecimal(Double.toString(amount))
+                    .setScale(scale(currency), java.math.RoundingMode.HALF_EVEN)
+                    .unscaledValue().longValueExact();
+        }
+
+        /**
+         * Converts minor units back to a decimal amount, for callers that still take doubles.
+         */
+        static double toAmount(long minorUnits, int currency) {
+            return (double) minorUnits / POWERS_OF_TEN[scale(currency)];
+        }
+
+        /**
+         * Converts a rate to fixed point, rounding half-even.
+         */
+        static long toScaledRate(double rate) {
+            return (long) Math.rint(rate * RATE_SCALE);
+        }
+
+        /**
+         * Converts an amount to another currency at a scaled rate, rounding half-even
+         * to the minor units of the target currency.
+         */
+        static long convert(long minorUnits, int fromCurrency, long scaledRate, int toCurrency) {
+            int shift = scale(toCurrency) - scale(fromCurrency);
+            return shift >= 0
+                    ? multiplyDivide(minorUnits, scaledRate, POWERS_OF_TEN[shift], RATE_SCALE)
+                    : multiplyDivide(minorUnits, scaledRate, 1L, RATE_SCALE * POWERS_OF_TEN[-shift]);
+        }
+
+        /**
+         * Applies a scaled rate, such as a fee rate, to an amount in the same currency.
+         */
+        static long applyRate(long minorUnits, long scaledRate) {
+            return multiplyDivide(minorUnits, scaledRate, 1L, RATE_SCALE);
+        }
+
+        /**
+         * Formats minor units as a plain decimal amount, e.g. 123456 cents as "1234.56".
+         */
+        static String format(long minorUnits, int currency) {
+            int scale = scale(currency);
+            if (scale == 0) {
+                return Long.toString(minorUnits);
+            }
+            long unit = POWERS_OF_TEN[scale];
+            long whole = Math.abs(minorUnits / unit);
+            long fraction = Math.abs(minorUnits % unit);
+            String digits = Long.toString(fraction);
+            StringBuilder text = new StringBuilder(24);
+            if (minorUnits < 0) {
+                text.append('-');
+            }
+            text.append(whole).append('.');
+            for (int i = digits.length(); i < scale; i++) {
+                text.append('0');
+            }
+            return text.append(digits).toString();
+        }
+
+        /**
+         * @return a * b * c / divisor, rounded half-even
+         */
+        private static long multiplyDivide(long a, long b, long c, long divisor) {
+            try {
+                return divideHalfEven(Math.multiplyExact(Math.multiplyExact(a, b), c), divisor);
+            } catch (ArithmeticException overflow) {
+                java.math.BigInteger product = java.math.BigInteger.valueOf(a)
+                        .multiply(java.math.BigInteger.valueOf(b))
+                        .multiply(java.math.BigInteger.valueOf(c));
+                return new java.math.BigDecimal(product)
+                        .divide(java.math.BigDecimal.valueOf(divisor), 0, java.math.RoundingMode.HALF_EVEN)
+                        .longValueExact();
+            }
+        }
+
+        private static long divideHalfEven(long dividend, long divisor) {
+            long quotient = dividend / divisor;
+            long remainder = dividend % divisor;
+            if (remainder == 0) {
+                return quotient;
+            }
+            long twiceRemainder = Math.abs(remainder) * 2; // divisor is at most RATE_SCALE * 10^4, so this cannot overflow
+            long absDivisor = Math.abs(divisor);
+            long sign = (dividend < 0) == (divisor < 0) ? 1 : -1;
+            if (twiceRemainder > absDivisor || (twiceRemainder == absDivisor && (quotient & 1) != 0)) {
+                quotient += sign;
+            }
+            return quotient;
+        }
+    }
+
+    /**
+     * Immutable, array-backed set of cached exchange rates indexed by currency ordinal.
+     * Expiry is a System.nanoTime deadline per currency, so a freshness check is one long comparison.
+     * A cross-rate matrix over every pair of cached currencies is built with the snapshot.
+     */
+    static final class RateSnapshot {
+        static final RateSnapshot EMPTY = new RateSnapshot(new double[0], new long[0], new CurrencyRate[0],
+                new DetailedRate[0], new double[0], -1);
+
+        private final double[] rates;
+        private final long[] expiresAtNanos;
+        private final CurrencyRate[] currencyRates;
+        private final DetailedRate[] detailedRates;
+        // Row-major: crossRates[from * rates.length + to] converts one unit of from into to
+        private final double[] crossRates;
+        private final int baseOrdinal;
+
+        private RateSnapshot(double[] rates, long[] expiresAtNanos, CurrencyRate[] currencyRates,
+                             DetailedRate[] detailedRates, double[] crossRates, int baseOrdinal) {
+            this.rates = rates;
+            this.expiresAtNanos = expiresAtNanos;
+            this.currencyRates = currencyRates;
+            this.detailedRates = detailedRates;
+            this.crossRates = crossRates;
+            this.baseOrdinal = baseOrdinal;
+        }
+
+        /**
+         * @return The cached rate if present and not expired at nowNanos, otherwise 0.0
+         */
+        double freshRate(int ordinal, long nowNanos) {
+            if (ordinal < 0 || ordinal >= rates.length || nowNanos - expiresAtNanos[ordinal] >= 0) {
+                return 0.0;
+            }
+            return rates[ordinal];
+        }
+
+        /**
+         * @return The cached detailed rate if present and not expired at nowNanos, otherwise null
+         */
+        DetailedRate freshDetailedRate(int ordinal, long nowNanos) {
+            if (ordinal < 0 || ordinal >= detailedRates.length || nowNanos - expiresAtNanos[ordinal] >= 0) {
+                return null;
+            }
+            return detailedRates[ordinal];
+        }
+
+        /**
+         * @return The rate converting one unit of from into to if both are fresh at nowNanos, otherwise 0.0
+         */
+        double freshCrossRate(int from, int to, long nowNanos) {
+            if (!isFresh(from, nowNanos) || !isFresh(to, nowNanos)) {
+                return 0.0;
+            }
+            return crossRates[from * rates.length + to];
+        }
+
+        /**
+         * Looks up a cross rate without a freshness check, for callers that already checked
+         * both currencies with isFresh.
+         */
+        double crossRate(int from, int to) {
+            return crossRates[from * rates.length + to];
+        }
+
+        /**
+         * @return true if the currency is the base currency or has a rate that has not expired at nowNanos
+         */
+        boolean isFresh(int ordinal, long nowNanos) {
+            if (ordinal < 0 || ordinal >= rates.length) {
+                return false;
+            }
+            return ordinal == baseOrdinal || nowNanos - expiresAtNanos[ordinal] < 0;
+        }
+
+        /**
+         * @return The cached rate and its timestamp even if expired, or null if never cached
+         */
+        CurrencyRate currencyRate(int ordinal) {
+            return ordinal >= 0 && ordinal < currencyRates.length ? currencyRates[ordinal] : null;
+        }
+
+        Builder toBuilder(int size) {
+            return new Builder(this, Math.max(size, rates.length));
+        }
+
+        /**
+         * Copy-on-write builder; the snapshot it was created from is left untouched.
+         */
+        static final class Builder {
+            private final double[] rates;
+            private final long[] expiresAtNanos;
+            private final CurrencyRate[] currencyRates;
+            private final DetailedRate[] detailedRates;
+
+            private Builder(RateSnapshot base, int size) {
+                this.rates = Arrays.copyOf(base.rates, size);
+                this.expiresAtNanos = Arrays.copyOf(base.expiresAtNanos, size);
+                this.currencyRates = Arrays.copyOf(base.currencyRates, size);
+                this.detailedRates = Arrays.copyOf(base.detailedRates, size);
+            }
+
+            Builder put(int ordinal, double rate, java.time.LocalDateTime lastUpdated, long expiresAtNanos) {
+                this.rates[ordinal] = rate;
+                this.expiresAtNanos[ordinal] = expiresAtNanos;
+                this.currencyRates[ordinal] = new CurrencyRate(rate, lastUpdated);
+                this.detailedRates[ordinal] = DetailedRate.of(rate);
+                return this;
+            }
+
+            /**
+             * @param baseOrdinal The currency all rates are quoted against; it converts at 1.0
+             */
+            RateSnapshot build(int baseOrdinal) {
+                int size = rates.length;
+                double[] quoted = rates.clone();
+                if (baseOrdinal >= 0 && baseOrdinal < size) {
+                    quoted[baseOrdinal] = 1.0;
+                } else {
+                    baseOrdinal = -1;
+                }
+                double[] crossRates = new double[size * size];
+                for (int from = 0; from < size; from++) {
+                    double fromRate = quoted[from];
+                    if (fromRate <= 0) {
+                        continue;
+                    }
+                    int row = from * size;
+                    for (int to = 0; to < size; to++) {
+                        double toRate = quoted[to];
+                        crossRates[row + to] = toRate > 0 ? fromRate / toRate : 0.0;
+                    }
+                }
+                return new RateSnapshot(rates, expiresAtNanos, currencyRates, detailedRates, crossRates, baseOrdinal);
+            }
+        }
+    }
+
+    /**
+     * Durable, append-only log of cheque history records in memory-mapped segment files.
+     * Every record has the same 96-byte layout and carries a sequence number and a CRC32C,
+     * so recovery replays each segment up to the first torn or stale record. Segments are
+     * named after their first sequence number and are never rewritten.
+     */
+    static class ChequeHistoryLog implements AutoCloseable {
+        static final int RECORD_BYTES = 96;
+        static final int MAX_ID_BYTES = 32;
+        private static final int CRC_OFFSET = 0;
+        private static final int SEQUENCE_OFFSET = 4;
+        private static final int TIMESTAMP_OFFSET = 12;
+        private static final int AMOUNT_OFFSET = 20;
+        private static final int CURRENCY_OFFSET = 28;
+        private static final int ACCOUNT_LENGTH_OFFSET = 30;
+        private static final int CHEQUE_LENGTH_OFFSET = 31;
+        private static final int ACCOUNT_OFFSET = 32;
+        private static final int CHEQUE_OFFSET = ACCOUNT_OFFSET + MAX_ID_BYTES;
+        private static final String SEGMENT_PREFIX = "history-";
+        private static final String SEGMENT_SUFFIX = ".seg";
+        private static final int DEFAULT_BATCH_RECORDS = 1024;
+
+        /**
+         * When appended records are forced to the storage device.
+         */
+        enum Durability {
+            /** Left to the operating system; forced only when a segment fills up or the log is closed */
+            ASYNC,
+            /** Forced after every batch of appends, bounding the records a power failure can lose */
+            BATCH,
+            /** Forced after every append */
+            SYNC
+        }
+
+        /**
+         * Receives records during replay, oldest first.
+         */
+        interface RecordSink {
+            void accept(String accountNumber, String chequeNumber, int currency, long amountMinorUnits, long timestampMillis);
+        }
+
+        private final java.nio.file.Path directory;
+        private final int recordsPerSegment;
+        private final Durability durability;
+        private final java.util.zip.CRC32C crc = new java.util.zip.CRC32C();
+        private final byte[] scratch = new byte[RECORD_BYTES];
+
+        private java.nio.channels.FileChannel channel;
+        private java.nio.MappedByteBuffer segment;
+        private int segmentRecords;      // Records written to the current segment
+        private int unforcedFrom;        // First record of the current segment not yet forced
+        private long nextSequence;
+
+        /**
+         * @param segmentBytes Size of each segment file; rounded down to whole records
+         */
+        public ChequeHistoryLog(java.nio.file.Path directory, long segmentBytes, Durability durability) throws IOException {
+            if (segmentBytes < RECORD_BYTES || segmentBytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Segment size must hold at least one record and fit one mapping");
+            }
+            this.directory = java.nio.file.Files.createDirectories(directory);
+            this.recordsPerSegment = (int) (segmentBytes / RECORD_BYTES);
+            this.durability = durability;
+        }
+
+        /**
+         * Replays every intact record and positions the log to append after the last one.
+         * Must be called once before the first append.
+         * @return The number of records replayed
+         */
+        public synchronized long recover(RecordSink sink) throws IOException {
+            return recover(sink, Long.MIN_VALUE);
+        }
+
+        /**
+         * Like recover, but leading segments whose last record is dated before skipBeforeMillis
+         * are not read at all. Records are appended in time order, so only the last record of
+         * each segment is checked. Records before skipBeforeMillis in the first segment read are
+         * still passed to the sink.
+         * @return The number of records replayed
+         */
+        public synchronized long recover(RecordSink sink, long skipBeforeMillis) throws IOException {
+            List<java.nio.file.Path> segments = listSegments();
+            int first = 0;
+            while (first < segments.size() - 1
+                    && lastTimestamp(segments.get(first), segments.get(first + 1)) < skipBeforeMillis) {
+                first++;
+            }
+            long expected = segments.isEmpty() ? 0 : firstSequence(segments.get(first));
+            long replayed = 0;
+            for (int i = first; i < segments.size(); i++) {
+                java.nio.file.Path file = segments.get(i);
+                if (firstSequence(file) != expected) {
+                    // A gap means nothing from here on can follow the records already replayed
+                    Logger.warn("Cheque history segment " + file.getFileName() + " does not continue the log");
+                    setAside(segments.subList(i, segments.size()));
+                    break;
+                }
+                int records;
+                int valid = 0;
+                try (java.nio.channels.FileChannel in = java.nio.channels.FileChannel.open(file,
+                        java.nio.file.StandardOpenOption.READ)) {
+                    records = (int) Math.min(in.size() / RECORD_BYTES, recordsPerSegment);
+                    java.nio.MappedByteBuffer buffer = in.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0,
+                            (long) records * RECORD_BYTES);
+                    while (valid < records && readRecord(buffer, valid, expected, sink)) {
+                        valid++;
+                        expected++;
+                    }
+                }
+                replayed += valid;
+                boolean last = i == segments.size() - 1;
+                if (valid < records && !last) {
+                    Logger.warn("Cheque history segment " + file.getFileName() + " is damaged after record " + valid);
+                    setAside(segments.subList(i + 1, segments.size()));
+                }
+                if (valid < records || last) {
+                    // The log continues right after the last intact record
+                    openSegment(file, valid);
+                    break;
+                }
+            }
+            nextSequence = expected;
+            if (channel == null) {
+                openSegment(segmentPath(nextSequence), 0);
+            }
+            return replayed;
+        }
+
+        /**
+         * Appends one record and forces it to disk as the durability mode requires.
+         * @throws IllegalArgumentException If an id is longer than MAX_ID_BYTES in UTF-8
+         */
+        public synchronized void append(String accountNumber, String chequeNumber, int currency,
+                                        long amountMinorUnits, long timestampMillis) throws IOException {
+            if (channel == null) {
+                throw new IllegalStateException("Cheque history log has not been recovered");
+            }
+            Arrays.fill(scratch, (byte) 0);
+            int accountLength = encode(accountNumber, ACCOUNT_OFFSET);
+            int chequeLength = encode(chequeNumber, CHEQUE_OFFSET);
+            putLong(scratch, SEQUENCE_OFFSET, nextSequence);
+            putLong(scratch, TIMESTAMP_OFFSET, timestampMillis);
+            putLong(scratch, AMOUNT_OFFSET, amountMinorUnits);
+            scratch[CURRENCY_OFFSET] = (byte) (currency >>> 8);
+            scratch[CURRENCY_OFFSET + 1] = (byte) currency;
+            scratch[ACCOUNT_LENGTH_OFFSET] = (byte) accountLength;
+            scratch[CHEQUE_LENGTH_OFFSET] = (byte) chequeLength;
+            crc.reset();
+            crc.update(scratch, SEQUENCE_OFFSET, RECORD_BYTES - SEQUENCE_OFFSET);
+            putInt(scratch, CRC_OFFSET, (int) crc.getValue());
+
+            if (segmentRecords == recordsPerSegment) {
+                rollSegment();
+            }
+            segment.position(segmentRecords * RECORD_BYTES);
+            segment.put(scratch);
+            segmentRecords++;
+            nextSequence++;
+
+            if (durability == Durability.SYNC
+                    || (durability == Durability.BATCH && segmentRecords - unforcedFrom >= DEFAULT_BATCH_RECORDS)) {
+                force();
+            }
+        }
+
+        /**
+         * Forces every appended record to the storage device.
+         */
+        public synchronized void force() {
+            if (segment != null && segmentRecords > unforcedFrom) {
+                segment.force(unforcedFrom * RECORD_BYTES, (segmentRecords - unforcedFrom) * RECORD_BYTES);
+                unforcedFrom = segmentRecords;
+            }
+        }
+
+        public synchronized long size() {
+            return nextSequence;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            force();
+            if (channel != null) {
+                channel.close();
+                channel = null;
+                segment = null;
+            }
+        }
+
+        private void rollSegment() throws IOException {
+            segment.force();
+            channel.close();
+            openSegment(segmentPath(nextSequence), 0);
+        }
+
+        private void openSegment(java.nio.file.Path file, int records) throws IOException {
+            channel = java.nio.channels.FileChannel.open(file,
+                    java.nio.file.StandardOpenOption.CREATE,
+                    java.nio.file.StandardOpenOption.READ,
+                    java.nio.file.StandardOpenOption.WRITE);
+            segment = channel.map(java.nio.channels.FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_BYTES);
+            segmentRecords = records;
+            // Clear anything behind the last intact record, so a torn or stale record there can
+            // never be chained onto the records appended from now on
+            byte[] zeros = new byte[RECORD_BYTES];
+            for (int i = records; i < recordsPerSegment; i++) {
+                if (!isClear(i)) {
+                    segment.position(i * RECORD_BYTES);
+                    segment.put(zeros);
+                }
+            }
+            segment.force();
+            unforcedFrom = records;
+        }
+
+        private boolean isClear(int index) {
+            for (int offset = index * RECORD_BYTES, end = offset + RECORD_BYTES; offset < end; offset += Long.BYTES) {
+                if (segment.getLong(offset) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Renames segments that can no longer be replayed, keeping them for inspection.
+         */
+        private void setAside(List<java.nio.file.Path> segments) throws IOException {
+            for (java.nio.file.Path file : segments) {
+                java.nio.file.Path orphan = file.resolveSibling(file.getFileName() + ".orphaned");
+                java.nio.file.Files.move(file, orphan, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+                Logger.warn("Set aside cheque history segment " + orphan.getFileName());
+            }
+        }
+
+        /**
+         * @return The timestamp of the last record of a segment, found from where the next segment
+         *         starts, or Long.MAX_VALUE if that record is missing or damaged
+         */
+        private long lastTimestamp(java.nio.file.Path file, java.nio.file.Path next) throws IOException {
+            long sequence = firstSequence(next) - 1;
+            long index = sequence - firstSequence(file);
+            if (index < 0) {
+                return Long.MAX_VALUE;
+            }
+            java.nio.ByteBuffer buffer = java.nio.ByteBuffer.wrap(scratch);
+            try (java.nio.channels.FileChannel in = java.nio.channels.FileChannel.open(file,
+                    java.nio.file.StandardOpenOption.READ)) {
+                while (buffer.hasRemaining()) {
+                    if (in.read(buffer, index * RECORD_BYTES + buffer.position()) < 0) {
+                        return Long.MAX_VALUE;
+                    }
+                }
+            }
+            crc.reset();
+            crc.update(scratch, SEQUENCE_OFFSET, RECORD_BYTES - SEQUENCE_OFFSET);
+            if (getInt(scratch, CRC_OFFSET) != (int) crc.getValue() || getLong(scratch, SEQUENCE_OFFSET) != sequence) {
+                return Long.MAX_VALUE;
+            }
+            return getLong(scratch, TIMESTAMP_OFFSET);
+        }
+
+        /**
+         * Checks and replays the record at the given index.
+         * @return false if it is torn, stale or was never written
+         */
+        private boolean readRecord(java.nio.ByteBuffer buffer, int index, long expectedSequence, RecordSink sink) {
+            int offset = index * RECORD_BYTES;
+            buffer.position(offset);
+            buffer.get(scratch);
+            crc.reset();
+            crc.update(scratch, SEQUENCE_OFFSET, RECORD_BYTES - SEQUENCE_OFFSET);
+            if (getInt(scratch, CRC_OFFSET) != (int) crc.getValue() || getLong(scratch, SEQUENCE_OFFSET) != expectedSequence) {
+                return false;
+            }
+            int accountLength = scratch[ACCOUNT_LENGTH_OFFSET] & 0xFF;
+            int chequeLength = scratch[CHEQUE_LENGTH_OFFSET] & 0xFF;
+            if (accountLength > MAX_ID_BYTES || chequeLength > MAX_ID_BYTES) {
+                return false;
+            }
+            int currency = ((scratch[CURRENCY_OFFSET] & 0xFF) << 8) | (scratch[CURRENCY_OFFSET + 1] & 0xFF);
+            sink.accept(new String(scratch, ACCOUNT_OFFSET, accountLength, StandardCharsets.UTF_8),
+                    new String(scratch, CHEQUE_OFFSET, chequeLength, StandardCharsets.UTF_8),
+                    currency, getLong(scratch, AMOUNT_OFFSET), getLong(scratch, TIMESTAMP_OFFSET));
+            return true;
+        }
+
+        /**
+         * @return true if the id fits a record, i.e. is at most MAX_ID_BYTES long in UTF-8
+         */
+        static boolean fitsRecord(String id) {
+            return id.length() * 3 <= MAX_ID_BYTES || id.getBytes(StandardCharsets.UTF_8).length <= MAX_ID_BYTES;
+        }
+
+        private int encode(String id, int offset) {
+            int length = id.length();
+            boolean ascii = length <= MAX_ID_BYTES;
+            for (int i = 0; i < length && ascii; i++) {
+                char c = id.charAt(i);
+                if (c >= 0x80) {
+                    ascii = false;
+                } else {
+                    scratch[offset + i] = (byte) c;
+                }
+            }
+            if (ascii) {
+                return length;
+            }
+            byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_ID_BYTES) {
+                throw new IllegalArgumentException("Identifier longer than " + MAX_ID_BYTES + " bytes: " + id);
+            }
+            System.arraycopy(bytes, 0, scratch, offset, bytes.length);
+            return bytes.length;
+        }
+
+        private List<java.nio.file.Path> listSegments() throws IOException {
+            List<java.nio.file.Path> segments = new ArrayList<>();
+            try (java.nio.file.DirectoryStream<java.nio.file.Path> files =
+                         java.nio.file.Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                for (java.nio.file.Path file : files) {
+                    segments.add(file);
+                }
+            }
+            // Fixed-width sequence numbers make name order the log order
+            Collections.sort(segments);
+            return segments;
+        }
+
+        private java.nio.file.Path segmentPath(long firstSequence) {
+            return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+        }
+
+        private static long firstSequence(java.nio.file.Path segment) {
+            String name = segment.getFileName().toString();
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+
+        private static void putLong(byte[] bytes, int offset, long value) {
+            for (int i = 7; i >= 0; i--) {
+                bytes[offset + i] = (byte) value;
+                value >>>= 8;
+            }
+        }
+
+        private static void putInt(byte[] bytes, int offset, int value) {
+            for (int i = 3; i >= 0; i--) {
+                bytes[offset + i] = (byte) value;
+                value >>>= 8;
+            }
+        }
+
+        private static long getLong(byte[] bytes, int offset) {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (bytes[offset + i] & 0xFF);
+            }
+            return value;
+        }
+
+        private static int getInt(byte[] bytes, int offset) {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | (bytes[offset + i] & 0xFF);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Keeps the history of processed cheques with two indexes: per account, and one global
+     * list ordered by time. Period queries are binary-searched range scans over the global
+     * index, and per-account questions only touch that account's records.
+     */
+    static class ChequeHistoryManager {
+        // Recent means today plus the 30 local days before it, so up to 31 calendar days
+        static final int RECENT_DAYS = 30;
+        private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+        private static final int DISPLAY_PAGE_SIZE = 20;
+
+        /**
+         * A processed cheque. The amount is held in minor units of its currency.
+         */
+        static class ChequeRecord {
+            private final String accountNumber;
+            private final String chequeNumber;
+            private final int currency;
+            private final long amountMinorUnits;
+            private final long timestampMillis;
+
+            ChequeRecord(String accountNumber, String chequeNumber, int currency, long amountMinorUnits, long timestampMillis) {
+                this.accountNumber = accountNumber;
+                this.chequeNumber = chequeNumber;
+                this.currency = currency;
+                this.amountMinorUnits = amountMinorUnits;
+                this.timestampMillis = timestampMillis;
+            }
+
+            public String getAccountNumber() {
+                return accountNumber;
+            }
+
+            public String getChequeNumber() {
+                return chequeNumber;
+            }
+
+            public int getCurrency() {
+                return currency;
+            }
+
+            public long getAmountMinorUnits() {
+                return amountMinorUnits;
+            }
+
+            public double getAmount() {
+                return Money.toAmount(amountMinorUnits, currency);
+            }
+
+            public long getTimestampMillis() {
+                return timestampMillis;
+            }
+
+            public Date getDate() {
+                return new Date(timestampMillis);
+            }
+        }
+
+        /**
+         * Count, sum, minimum and maximum of cheque amounts in one currency, in minor units.
+         */
+        static class CurrencyTotals {
+            private int count;
+            private long sumMinorUnits;
+            private long minMinorUnits = Long.MAX_VALUE;
+            private long maxMinorUnits = Long.MIN_VALUE;
+
+            void add(long amountMinorUnits) {
+                count++;
+                sumMinorUnits += amountMinorUnits;
+                minMinorUnits = Math.min(minMinorUnits, amountMinorUnits);
+                maxMinorUnits = Math.max(maxMinorUnits, amountMinorUnits);
+            }
+
+            void merge(CurrencyTotals other) {
+                count += other.count;
+                sumMinorUnits += other.sumMinorUnits;
+                minMinorUnits = Math.min(minMinorUnits, other.minMinorUnits);
+                maxMinorUnits = Math.max(maxMinorUnits, other.maxMinorUnits);
+            }
+
+            public int getCount() {
+                return count;
+            }
+
+            public long getSumMinorUnits() {
+                return sumMinorUnits;
+            }
+
+            public long getMinMinorUnits() {
+                return minMinorUnits;
+            }
+
+            public long getMaxMinorUnits() {
+                return maxMinorUnits;
+            }
+        }
+
+        /**
+         * Totals for one local day, kept up to date by recordCheque.
+         */
+        private static class DailyRollup {
+            private int count;
+            private final Map<Integer, CurrencyTotals> byCurrency = new HashMap<>(4);
+        }
+
+        /**
+         * Totals over a range of days, merged from the daily rollups.
+         */
+        static class RollupSummary {
+            private final LocalDate startDate;
+            private final LocalDate endDate;
+            private int count;
+            private final Map<Integer, CurrencyTotals> byCurrency = new TreeMap<>();
+
+            RollupSummary(LocalDate startDate, LocalDate endDate) {
+                this.startDate = startDate;
+                this.endDate = endDate;
+            }
+
+            public int getCount() {
+                return count;
+            }
+
+            /**
+             * @return The totals per currency ordinal, in ordinal (alphabetical code) order
+             */
+            public Map<Integer, CurrencyTotals> getTotalsByCurrency() {
+                return Collections.unmodifiableMap(byCurrency);
+            }
+        }
+
+        /**
+         * One account's records in time order, plus its cheque numbers for duplicate checks and
+         * running counters for frequency checks.
+         */
+        private static class AccountHistory {
+            private final List<ChequeRecord> records = new ArrayList<>();
+            private final Set<String> chequeNumbers = new LinkedHashSet<>();
+            private int totalCount; // Includes records moved out of memory into the archive
+            // Cheques per local day for today and the RECENT_DAYS days before, in a ring indexed by day
+            private final int[] dayCounts = new int[RECENT_DAYS + 1];
+            private long latestDay = Long.MIN_VALUE; // Newest day the ring has been rotated to
+            private int recentCount; // Sum of dayCounts
+
+            /**
+             * Counts a cheque on the given day; the caller holds the write lock.
+             */
+            void count(long epochDay) {
+                totalCount++;
+                if (epochDay > latestDay) {
+                    rotateTo(epochDay);
+                } else if (epochDay <= latestDay - dayCounts.length) {
+                    return; // Older than the ring
+                }
+                dayCounts[(int) Math.floorMod(epochDay, (long) dayCounts.length)]++;
+                recentCount++;
+            }
+
+            /**
+             * @return The cheques counted from RECENT_DAYS days before today onwards. Reads only,
+             *         subtracting the buckets that have aged out since the last rotation.
+             */
+            int recentCount(long today) {
+                long aged = today - latestDay;
+                if (aged <= 0) {
+                    return recentCount;
+                }
+                if (aged >= dayCounts.length) {
+                    return 0;
+                }
+                int count = recentCount;
+                long oldest = latestDay - dayCounts.length + 1;
+                for (long day = oldest; day < oldest + aged; day++) {
+                    count -= dayCounts[(int) Math.floorMod(day, (long) dayCounts.length)];
+                }
+                return count;
+            }
+
+            private void rotateTo(long epochDay) {
+                long first = latestDay == Long.MIN_VALUE ? epochDay - dayCounts.length + 1
+                        : Math.max(latestDay + 1, epochDay - dayCounts.length + 1);
+                for (long day = first; day <= epochDay; day++) {
+                    int slot = (int) Math.floorMod(day, (long) dayCounts.length);
+                    recentCount -= dayCounts[slot];
+                    dayCounts[slot] = 0;
+                }
+                latestDay = epochDay;
+            }
+        }
+
+        private final Map<String, AccountHistory> accounts = new HashMap<>();
+        private final List<ChequeRecord> timeline = new ArrayList<>();
+        private final NavigableMap<Long, DailyRollup> dailyRollups = new TreeMap<>(); // Keyed by local epoch day
+        private final java.time.ZoneId zone;
+        private final java.util.concurrent.locks.ReadWriteLock lock = new java.util.concurrent.locks.ReentrantReadWriteLock();
+        private ChequeHistoryLog log;
+        private volatile ChequeArchive archive;
+        private volatile long archivedBeforeMillis = Long.MIN_VALUE;
+
+        public ChequeHistoryManager() {
+            this(java.time.ZoneId.systemDefault());
+        }
+
+        /**
+         * @param zone The time zone whose calendar days the daily rollups follow
+         */
+        public ChequeHistoryManager(java.time.ZoneId zone) {
+            this.zone = zone;
+        }
+
+        /**
+         * Replays the log into the indexes and rollups, then appends every new cheque to it.
+         * @return The number of records recovered from the log
+         */
+        public long attachLog(ChequeHistoryLog log) throws IOException {
+            return attachLog(log, null);
+        }
+
+        /**
+         * Like attachLog, but records below the archive's watermark stay on disk: they are
+         * counted in the rollups, per-account counts and cheque numbers from the archive, as
+         * archiving does, and log segments holding only such records are never read.
+         * @param archive The archive written by earlier runs, or null
+         * @return The number of records recovered from the log, including any below the watermark
+         */
+        public long attachLog(ChequeHistoryLog log, ChequeArchive archive) throws IOException {
+            long archivedBefore = archive == null ? Long.MIN_VALUE : archive.getArchivedBeforeMillis();
+            lock.writeLock().lock();
+            try {
+                if (archivedBefore != Long.MIN_VALUE) {
+                    archive.scan(Long.MIN_VALUE, archivedBefore, null, this::summarize);
+                }
+                // The archive already holds every record below the watermark
+                long recovered = log.recover((accountNumber, chequeNumber, currency, amountMinorUnits, timestampMillis) -> {
+                    if (timestampMillis >= archivedBefore) {
+                        index(new ChequeRecord(accountNumber, chequeNumber, currency, amountMinorUnits, timestampMillis));
+                    }
+                }, archivedBefore);
+                this.log = log;
+                if (archivedBefore != Long.MIN_VALUE) {
+                    this.archive = archive;
+                    this.archivedBeforeMillis = Math.max(archivedBeforeMillis, archivedBefore);
+                }
+                return recovered;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Records a processed cheque in the log, both indexes and its day's rollup under one
+         * write lock, so readers never see it in one place but not another.
+         * @param currency The currency ordinal from CurrencyRegistry
+         * @param amountMinorUnits The amount in minor units of the currency
+         * @throws java.io.UncheckedIOException If the log cannot be written; the cheque is still indexed,
+         *         so duplicate and frequency checks see it, but it will be missing after a restart
+         */
+        public void recordCheque(String accountNumber, String chequeNumber, int currency, long amountMinorUnits, Date date) {
+            ChequeRecord record = new ChequeRecord(accountNumber, chequeNumber, currency, amountMinorUnits, date.getTime());
+            IOException logFailure = null;
+            lock.writeLock().lock();
+            try {
+                if (log != null) {
+                    try {
+                        log.append(accountNumber, chequeNumber, currency, amountMinorUnits, record.timestampMillis);
+                    } catch (IOException ex) {
+                        logFailure = ex;
+                    }
+                }
+                index(record);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (logFailure != null) {
+                throw new java.io.UncheckedIOException("Could not log cheque " + chequeNumber, logFailure);
+            }
+        }
+
+        /**
+         * Adds a record to the indexes and rollups; the caller holds the write lock.
+         */
+        private void index(ChequeRecord record) {
+            AccountHistory history = summarize(record);
+            insertInTimeOrder(history.records, record);
+            insertInTimeOrder(timeline, record);
+        }
+
+        /**
+         * Counts a record in its account's counters and cheque numbers and in its day's rollup,
+         * without keeping the record itself; the caller holds the write lock.
+         * @return The account's history
+         */
+        private AccountHistory summarize(ChequeRecord record) {
+            long epochDay = localEpochDay(record.timestampMillis);
+            AccountHistory history = accounts.computeIfAbsent(record.accountNumber, k -> new AccountHistory());
+            history.chequeNumbers.add(record.chequeNumber);
+            history.count(epochDay);
+            DailyRollup rollup = dailyRollups.computeIfAbsent(epochDay, k -> new DailyRollup());
+            rollup.count++;
+            rollup.byCurrency.computeIfAbsent(record.currency, k -> new CurrencyTotals()).add(record.amountMinorUnits);
+            return history;
+        }
+
+        /**
+         * One page of history in date order, with the cursor token that resumes after it.
+         */
+        static final class HistoryPage {
+            private final List<ChequeRecord> records;
+            private final String nextCursor;
+
+            HistoryPage(List<ChequeRecord> records, String nextCursor) {
+                this.records = records;
+                this.nextCursor = nextCursor;
+            }
+
+            public List<ChequeRecord> getRecords() {
+                return records;
+            }
+
+            /**
+             * @return The token for the following page, or null if this is the last page
+             */
+            public String getNextCursor() {
+                return nextCursor;
+            }
+
+            public boolean hasMore() {
+                return nextCursor != null;
+            }
+        }
+
+        /**
+         * Prints an account's cheques oldest first, including archived months, one page at a
+         * time; only the page on screen is read.
+         */
+        public void displayChequeHistory(String accountNumber, Scanner scanner) {
+            System.out.println("\n--- Cheque History for Account " + accountNumber + " ---");
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            String cursor = null;
+            do {
+                HistoryPage page;
+                try {
+                    page = getAccountHistoryPage(accountNumber, cursor, DISPLAY_PAGE_SIZE);
+                } catch (java.io.UncheckedIOException ex) {
+                    Logger.error("Could not read archived cheque history: " + ex.getMessage());
+                    System.out.println("Cheque history is unavailable. Please check logs.");
+                    return;
+                }
+                if (cursor == null && page.getRecords().isEmpty()) {
+                    System.out.println("No cheque history found for this account.");
+                    return;
+                }
+                for (ChequeRecord record : page.getRecords()) {
+                    System.out.println("Cheque: " + record.getChequeNumber()
+                            + " | Amount: " + Money.format(record.getAmountMinorUnits(), record.getCurrency())
+                            + " " + CurrencyRegistry.code(record.getCurrency())
+                            + " | Date: " + dateFormat.format(record.getDate()));
+                }
+                cursor = page.getNextCursor();
+                if (cursor != null) {
+                    System.out.println("Press Enter for more, or type Q to stop:");
+                    if (scanner.nextLine().trim().equalsIgnoreCase("q")) {
+                        return;
+                    }
+                }
+            } while (cursor != null);
+        }
+
+        /**
+         * Reads a page of an account's cheques in date order, including archived months.
+         * @param cursor Null for the first page, otherwise the token from the previous page
+         * @throws IllegalArgumentException If the cursor token is malformed
+         * @throws java.io.UncheckedIOException If the archive cannot be read
+         */
+        public HistoryPage getAccountHistoryPage(String accountNumber, String cursor, int pageSize) {
+            return readPage(Objects.requireNonNull(accountNumber), Long.MIN_VALUE, Long.MAX_VALUE, cursor, pageSize);
+        }
+
+        /**
+         * Reads a page of every account's cheques dated in [fromMillis, toMillis), in date order.
+         * @see #getAccountHistoryPage
+         */
+        public HistoryPage getPeriodHistoryPage(long fromMillis, long toMillis, String cursor, int pageSize) {
+            return readPage(null, fromMillis, toMillis, cursor, pageSize);
+        }
+
+        /**
+         * Collects one record more than the page holds to learn whether another page follows.
+         * Archived months come first, then the in-memory records, which all start at
+         * archivedBeforeMillis once an archive is attached.
+         */
+        private HistoryPage readPage(String accountNumber, long fromMillis, long toMillis, String token, int pageSize) {
+            if (pageSize <= 0) {
+                throw new IllegalArgumentException("Page size must be positive");
+            }
+            TimelineCursor cursor = token == null ? new TimelineCursor(fromMillis) : TimelineCursor.parse(token);
+            long start = cursor.timestampMillis;
+            int skip = cursor.seenAtTimestamp;
+            int limit = pageSize + 1;
+            List<ChequeRecord> records = new ArrayList<>(limit);
+
+            ChequeArchive archive = this.archive;
+            long archivedBefore = archivedBeforeMillis;
+            if (archive != null && start < archivedBefore) {
+                int alreadySeen = skip;
+                int[] skipped = {0};
+                try {
+                    archive.scan(start, Math.min(toMillis, archivedBefore), accountNumber, limit + skip, record -> {
+                        if (skipped[0] < alreadySeen) {
+                            skipped[0]++;
+                        } else {
+                            records.add(record);
+                        }
+                    });
+                } catch (IOException ex) {
+                    throw new java.io.UncheckedIOException(ex);
+                }
+                start = archivedBefore;
+                skip = 0;
+            }
+
+            if (records.size() < limit && start < toMillis) {
+                lock.readLock().lock();
+                try {
+                    AccountHistory history = accountNumber == null ? null : accounts.get(accountNumber);
+                    List<ChequeRecord> source = accountNumber == null ? timeline
+                            : history == null ? Collections.emptyList() : history.records;
+                    for (int i = lowerBound(source, start) + skip; i < source.size() && records.size() < limit; i++) {
+                        ChequeRecord record = source.get(i);
+                        if (record.timestampMillis >= toMillis) {
+                            break;
+                        }
+                        records.add(record);
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+
+            if (records.size() <= pageSize) {
+                return new HistoryPage(records, null);
+            }
+            records.remove(pageSize);
+            long last = records.get(pageSize - 1).timestampMillis;
+            int atLast = 0;
+            for (int i = pageSize - 1; i >= 0 && records.get(i).timestampMillis == last; i--) {
+                atLast++;
+            }
+            TimelineCursor next = new TimelineCursor(last);
+            next.seenAtTimestamp = last == cursor.timestampMillis ? cursor.seenAtTimestamp + atLast : atLast;
+            return new HistoryPage(records, next.toToken());
+        }
+
+        /**
+         * @return A copy of the account's records in time order, excluding archived months
+         */
+        public List<ChequeRecord> getChequeRecords(String accountNumber) {
+            lock.readLock().lock();
+            try {
+                AccountHistory history = accounts.get(accountNumber);
+                return history == null ? new ArrayList<>() : new ArrayList<>(history.records);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return The records dated from the start of startDate to the end of endDate, in time order,
+         *         archived months included
+         */
+        public List<ChequeRecord> getAllChequeRecordsInPeriod(LocalDate startDate, LocalDate endDate) {
+            java.time.ZoneId zone = java.time.ZoneId.systemDefault();
+            long fromMillis = startDate.atStartOfDay(zone).toInstant().toEpochMilli();
+            long toMillis = endDate.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+            List<ChequeRecord> records = new ArrayList<>();
+            TimelineCursor cursor = new TimelineCursor(fromMillis);
+            ChequeRecord[] batch = new ChequeRecord[1024];
+            int count;
+            while ((count = nextInPeriod(cursor, toMillis, batch)) > 0) {
+                records.addAll(Arrays.asList(batch).subList(0, count));
+            }
+            return records;
+        }
+
+        public String generateChequeReportCSV(List<ChequeRecord> records) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            StringBuilder csv = new StringBuilder("Account Number,Cheque Number,Currency,Amount,Date\n");
+            for (ChequeRecord record : records) {
+                csv.append(record.getAccountNumber()).append(',')
+                        .append(record.getChequeNumber()).append(',')
+                        .append(CurrencyRegistry.code(record.getCurrency())).append(',')
+                        .append(Money.format(record.getAmountMinorUnits(), record.getCurrency())).append(',')
+                        .append(dateFormat.format(record.getDate())).append('\n');
+            }
+            return csv.toString();
+        }
+
+        /**
+         * @return true if the account has recorded a cheque with this number, archived months included
+         */
+        public boolean hasChequeNumber(String accountNumber, String chequeNumber) {
+            lock.readLock().lock();
+            try {
+                AccountHistory history = accounts.get(accountNumber);
+                return history != null && history.chequeNumbers.contains(chequeNumber);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return The account's cheque numbers in the order they were first recorded
+         */
+        public List<String> getChequeNumbers(String accountNumber) {
+            lock.readLock().lock();
+            try {
+                AccountHistory history = accounts.get(accountNumber);
+                return history == null ? new ArrayList<>() : new ArrayList<>(history.chequeNumbers);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        public int getTotalChequeCount(String accountNumber) {
+            lock.readLock().lock();
+            try {
+                AccountHistory history = accounts.get(accountNumber);
+                return history == null ? 0 : history.totalCount;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Writes every month before firstHotMonth that is not yet archived to the archive, then
+         * drops those months' records from memory. Daily rollups, cheque numbers and per-account
+         * counts are kept, so summaries and duplicate checks still cover archived months.
+         * @return The number of months written
+         * @throws IllegalArgumentException If firstHotMonth would archive records from the last RECENT_DAYS days
+         */
+        public int archiveMonthsBefore(ChequeArchive archive, java.time.YearMonth firstHotMonth) throws IOException {
+            long boundary = archive.monthStartMillis(firstHotMonth);
+            if (boundary > System.currentTimeMillis() - RECENT_DAYS * DAY_MILLIS) {
+                throw new IllegalArgumentException("Cheques from the last " + RECENT_DAYS + " days must stay in memory");
+            }
+            List<ChequeRecord> cold;
+            lock.readLock().lock();
+            try {
+                cold = new ArrayList<>(timeline.subList(0, lowerBound(timeline, boundary)));
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            // Files are written without holding the lock; processing carries on meanwhile
+            int written = 0;
+            for (int start = 0; start < cold.size(); ) {
+                java.time.YearMonth month = archive.monthOf(cold.get(start).timestampMillis);
+                int end = lowerBound(cold, archive.monthStartMillis(month.plusMonths(1)));
+                if (!archive.isArchived(month)) {
+                    archive.writeMonth(month, cold.subList(start, end));
+                    written++;
+                }
+                start = end;
+            }
+            // Persisted once the months are on disk, so the next replay of the log can skip them
+            if (boundary > archive.getArchivedBeforeMillis()) {
+                archive.setArchivedBeforeMillis(boundary);
+            }
+
+            lock.writeLock().lock();
+            try {
+                timeline.subList(0, lowerBound(timeline, boundary)).clear();
+                for (AccountHistory history : accounts.values()) {
+                    history.records.subList(0, lowerBound(history.records, boundary)).clear();
+                }
+                this.archive = archive;
+                this.archivedBeforeMillis = Math.max(archivedBeforeMillis, boundary);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return written;
+        }
+
+        /**
+         * @return The number of the account's cheques dated from the start of the day RECENT_DAYS
+         *         days ago, read from the day buckets in constant time
+         */
+        public int getRecentChequeCount(String accountNumber) {
+            long today = localEpochDay(System.currentTimeMillis());
+            lock.readLock().lock();
+            try {
+                AccountHistory history = accounts.get(accountNumber);
+                return history == null ? 0 : history.recentCount(today);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return true if one of the account's cheques from the last RECENT_DAYS days is at least
+         *         threshold similar in amount to the given amount
+         */
+        public boolean hasSimilarRecentCheque(String accountNumber, double amount, double threshold) {
+            long since = System.currentTimeMillis() - RECENT_DAYS * DAY_MILLIS;
+            lock.readLock().lock();
+            try {
+                AccountHistory history = accounts.get(accountNumber);
+                if (history == null) {
+                    return false;
+                }
+                List<ChequeRecord> records = history.records;
+                for (int i = lowerBound(records, since); i < records.size(); i++) {
+                    double pastAmount = records.get(i).getAmount();
+                    double similarity = 1.0 - Math.abs(pastAmount - amount) / Math.max(pastAmount, amount);
+                    if (similarity >= threshold) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Aggregates startDate to endDate inclusive from the daily rollups, touching one
+         * rollup per day rather than the raw records.
+         */
+        public RollupSummary summarize(LocalDate startDate, LocalDate endDate) {
+            RollupSummary summary = new RollupSummary(startDate, endDate);
+            lock.readLock().lock();
+            try {
+                for (DailyRollup rollup : dailyRollups.subMap(startDate.toEpochDay(), true, endDate.toEpochDay(), true).values()) {
+                    summary.count += rollup.count;
+                    for (Map.Entry<Integer, CurrencyTotals> entry : rollup.byCurrency.entrySet()) {
+                        summary.byCurrency.computeIfAbsent(entry.getKey(), k -> new CurrencyTotals()).merge(entry.getValue());
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            return summary;
+        }
+
+        /**
+         * Prints the totals for a period per currency.
+         */
+        public void displaySummaryReport(LocalDate startDate, LocalDate endDate) {
+            RollupSummary summary = summarize(startDate, endDate);
+            System.out.println("\n--- Cheque Summary " + summary.startDate + " to " + summary.endDate + " ---");
+            if (summary.count == 0) {
+                System.out.println("No cheque records found for the selected period.");
+                return;
+            }
+            System.out.println("Total cheques: " + summary.count);
+            for (Map.Entry<Integer, CurrencyTotals> entry : summary.byCurrency.entrySet()) {
+                int currency = entry.getKey();
+                CurrencyTotals totals = entry.getValue();
+                System.out.println(CurrencyRegistry.code(currency) + " | Cheques: " + totals.count
+                        + " | Total: " + Money.format(totals.sumMinorUnits, currency)
+                        + " | Min: " + Money.format(totals.minMinorUnits, currency)
+                        + " | Max: " + Money.format(totals.maxMinorUnits, currency));
+            }
+        }
+
+        private long localEpochDay(long timestampMillis) {
+            int offsetSeconds = zone.getRules().getOffset(java.time.Instant.ofEpochMilli(timestampMillis)).getTotalSeconds();
+            return Math.floorDiv(timestampMillis + offsetSeconds * 1000L, DAY_MILLIS);
+        }
+
+        /**
+         * A position in the global timeline that stays valid while records are added:
+         * the time of the last record returned and how many records with exactly that time
+         * have been returned.
+         */
+        static final class TimelineCursor {
+            private long timestampMillis;
+            private int seenAtTimestamp;
+
+            /**
+             * @param fromMillis The cursor starts at the first record at or after this time
+             */
+            TimelineCursor(long fromMillis) {
+                this.timestampMillis = fromMillis;
+            }
+
+            /**
+             * @return An opaque token from which parse restores this position
+             */
+            String toToken() {
+                return timestampMillis + ":" + seenAtTimestamp;
+            }
+
+            static TimelineCursor parse(String token) {
+                int colon = token.indexOf(':');
+                try {
+                    TimelineCursor cursor = new TimelineCursor(Long.parseLong(token.substring(0, colon)));
+                    cursor.seenAtTimestamp = Integer.parseInt(token.substring(colon + 1));
+                    if (cursor.seenAtTimestamp < 0) {
+                        throw new NumberFormatException();
+                    }
+                    return cursor;
+                } catch (NumberFormatException | IndexOutOfBoundsException ex) {
+                    throw new IllegalArgumentException("Malformed history cursor: " + token);
+                }
+            }
+        }
+
+        /**
+         * Passes every record from fromMillis onwards to the action, oldest first, in batches
+         * so the lock is never held while the action runs.
+         */
+        public void forEachSince(long fromMillis, java.util.function.Consumer<ChequeRecord> action) {
+            TimelineCursor cursor = new TimelineCursor(fromMillis);
+            ChequeRecord[] batch = new ChequeRecord[1024];
+            int count;
+            while ((count = nextInPeriod(cursor, Long.MAX_VALUE, batch)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    action.accept(batch[i]);
+                }
+            }
+        }
+
+        /**
+         * Copies the next records before toMillis into batch and advances the cursor. Archived
+         * months are read first, as readPage does, then the in-memory records.
+         * The lock is held only while copying, so a long scan does not hold off writers.
+         * @return The number of records copied; 0 once the period is exhausted
+         */
+        public int nextInPeriod(TimelineCursor cursor, long toMillis, ChequeRecord[] batch) {
+            ChequeArchive archive = this.archive;
+            long archivedBefore = archivedBeforeMillis;
+            if (archive != null && cursor.timestampMillis < archivedBefore && cursor.timestampMillis < toMillis) {
+                int count = nextArchived(archive, cursor, Math.min(toMillis, archivedBefore), batch);
+                if (count > 0) {
+                    return count;
+                }
+                // The archived part of the period is exhausted; carry on with the records in memory
+                cursor.timestampMillis = archivedBefore;
+                cursor.seenAtTimestamp = 0;
+            }
+            lock.readLock().lock();
+            try {
+                int start = lowerBound(timeline, cursor.timestampMillis) + cursor.seenAtTimestamp;
+                int count = 0;
+                for (int i = start; i < timeline.size() && count < batch.length; i++) {
+                    ChequeRecord record = timeline.get(i);
+                    if (record.timestampMillis >= toMillis) {
+                        break;
+                    }
+                    batch[count++] = record;
+                }
+                advance(cursor, batch, count);
+                return count;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private static int nextArchived(ChequeArchive archive, TimelineCursor cursor, long toMillis, ChequeRecord[] batch) {
+            int alreadySeen = cursor.seenAtTimestamp;
+            int[] skipped = {0};
+            int[] count = {0};
+            try {
+                archive.scan(cursor.timestampMillis, toMillis, null, alreadySeen + batch.length, record -> {
+                    if (skipped[0] < alreadySeen) {
+                        skipped[0]++;
+                    } else {
+                        batch[count[0]++] = record;
+                    }
+                });
+            } catch (IOException ex) {
+                throw new java.io.UncheckedIOException(ex);
+            }
+            advance(cursor, batch, count[0]);
+            return count[0];
+        }
+
+        /**
+         * Moves the cursor past the first count records of the batch.
+         */
+        private static void advance(TimelineCursor cursor, ChequeRecord[] batch, int count) {
+            if (count == 0) {
+                return;
+            }
+            long last = batch[count - 1].timestampMillis;
+            int atLast = 0;
+            for (int i = count - 1; i >= 0 && batch[i].timestampMillis == last; i--) {
+                atLast++;
+            }
+            cursor.seenAtTimestamp = last == cursor.timestampMillis ? cursor.seenAtTimestamp + atLast : atLast;
+            cursor.timestampMillis = last;
+        }
+
+        /**
+         * @return The number of records from fromMillis inclusive to toMillis exclusive, archived months included
+         */
+        public int countInPeriod(long fromMillis, long toMillis) {
+            int archived = 0;
+            ChequeArchive archive = this.archive;
+            long archivedBefore = archivedBeforeMillis;
+            if (archive != null && fromMillis < archivedBefore) {
+                try {
+                    archived = archive.scan(fromMillis, Math.min(toMillis, archivedBefore), null, record -> { });
+                } catch (IOException ex) {
+                    throw new java.io.UncheckedIOException(ex);
+                }
+                fromMillis = archivedBefore;
+            }
+            lock.readLock().lock();
+            try {
+                return archived + Math.max(0, lowerBound(timeline, toMillis) - lowerBound(timeline, fromMillis));
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Appends the record, or inserts it in place if it is older than the last one.
+         */
+        private static void insertInTimeOrder(List<ChequeRecord> records, ChequeRecord record) {
+            int size = records.size();
+            if (size == 0 || records.get(size - 1).timestampMillis <= record.timestampMillis) {
+                records.add(record);
+            } else {
+                records.add(lowerBound(records, record.timestampMillis + 1), record);
+            }
+        }
+
+        /**
+         * @return The index of the first record at or after the given time
+         */
+        private static int lowerBound(List<ChequeRecord> records, long timestampMillis) {
+            int low = 0;
+            int high = records.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (records.get(mid).timestampMillis < timestampMillis) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Archive tier for closed months of cheque history, one columnar file per month.
+     * Rows are kept in time order and cut into blocks of BLOCK_ROWS. Within a block each
+     * column is stored contiguously: timestamps as deltas, accounts and currencies as
+     * dictionary ids, amounts as fixed-point minor units offset from the block minimum, all
+     * as varints, and the whole block is deflated. A directory of per-block min/max statistics
+     * at the end of the file lets period and account queries skip blocks without inflating them.
+     */
+    static class ChequeArchive {
+        static final int BLOCK_ROWS = 4096;
+        private static final int MAGIC = 0x43485141; // "CHQA"
+        private static final int VERSION = 1;
+        private static final int FOOTER_BYTES = Long.BYTES + Integer.BYTES;
+        private static final String FILE_PREFIX = "cheques-";
+        private static final String FILE_SUFFIX = ".archive";
+        private static final String WATERMARK_FILE = "archived-before";
+
+        /**
+         * Statistics and location of one block.
+         */
+        private static final class BlockInfo {
+            int rows;
+            long minTimestamp;
+            long maxTimestamp;
+            int minAccount;
+            int maxAccount;
+            long minAmount;
+            long maxAmount;
+            long offset;
+            int compressedLength;
+            int rawLength;
+        }
+
+        private final java.nio.file.Path directory;
+        private final java.time.ZoneId zone;
+
+        /**
+         * @param zone The time zone whose calendar months the archive files follow
+         */
+        public ChequeArchive(java.nio.file.Path directory, java.time.ZoneId zone) throws IOException {
+            this.directory = java.nio.file.Files.createDirectories(directory);
+            this.zone = zone;
+        }
+
+        public boolean isArchived(java.time.YearMonth month) {
+            return java.nio.file.Files.isRegularFile(monthPath(month));
+        }
+
+        /**
+         * @return The time before which every record is archived, or Long.MIN_VALUE if none is
+         */
+        public long getArchivedBeforeMillis() throws IOException {
+            java.nio.file.Path file = directory.resolve(WATERMARK_FILE);
+            if (!java.nio.file.Files.isRegularFile(file)) {
+                return Long.MIN_VALUE;
+            }
+            String text = new String(java.nio.file.Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+            try {
+                return Long.parseLong(text);
+            } catch (NumberFormatException ex) {
+                throw new IOException("Malformed archive watermark: " + file, ex);
+            }
+        }
+
+        /**
+         * Records that every record before the given time is archived. Like a month, the
+         * watermark is written beside its final name and moved into place.
+         */
+        public void setArchivedBeforeMillis(long archivedBeforeMillis) throws IOException {
+            java.nio.file.Path temp = directory.resolve(WATERMARK_FILE + ".tmp");
+            java.nio.file.Files.write(temp, Long.toString(archivedBeforeMillis).getBytes(StandardCharsets.US_ASCII));
+            java.nio.file.Files.move(temp, directory.resolve(WATERMARK_FILE),
+                    java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        public long monthStartMillis(java.time.YearMonth month) {
+            return month.atDay(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        }
+
+        public java.time.YearMonth monthOf(long timestampMillis) {
+            return java.time.YearMonth.from(java.time.Instant.ofEpochMilli(timestampMillis).atZone(zone));
+        }
+
+        /**
+         * Writes one month of records, which must all fall inside the month and be in time
+         * order. The file is written beside its final name and moved into place, so a month is
+         * either fully archived or not at all.
+         */
+        public void writeMonth(java.time.YearMonth month, List<ChequeHistoryManager.ChequeRecord> records) throws IOException {
+            long fromMillis = monthStartMillis(month);
+            long toMillis = monthStartMillis(month.plusMonths(1));
+
+            // Dictionaries are sorted so that id order matches account and currency order
+            TreeMap<String, Integer> accountIds = new TreeMap<>();
+            TreeMap<Integer, Integer> currencyIds = new TreeMap<>();
+            long previous = Long.MIN_VALUE;
+            for (ChequeHistoryManager.ChequeRecord record : records) {
+                if (record.getTimestampMillis() < Math.max(fromMillis, previous) || record.getTimestampMillis() >= toMillis) {
+                    throw new IllegalArgumentException("Records must be in time order within " + month);
+                }
+                previous = record.getTimestampMillis();
+                accountIds.put(record.getAccountNumber(), 0);
+                currencyIds.put(record.getCurrency(), 0);
+            }
+            int nextId = 0;
+            for (Map.Entry<String, Integer> entry : accountIds.entrySet()) {
+                entry.setValue(nextId++);
+            }
+            nextId = 0;
+            for (Map.Entry<Integer, Integer> entry : currencyIds.entrySet()) {
+                entry.setValue(nextId++);
+            }
+
+            java.nio.file.Path target = monthPath(month);
+            java.nio.file.Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            List<BlockInfo> blocks = new ArrayList<>();
+            java.util.zip.Deflater deflater = new java.util.zip.Deflater(java.util.zip.Deflater.BEST_SPEED);
+            try (java.io.DataOutputStream out = new java.io.DataOutputStream(new java.io.BufferedOutputStream(
+                    java.nio.file.Files.newOutputStream(temp), 1 << 16))) {
+                ColumnBuffer timestamps = new ColumnBuffer();
+                ColumnBuffer accounts = new ColumnBuffer();
+                ColumnBuffer currencies = new ColumnBuffer();
+                ColumnBuffer amounts = new ColumnBuffer();
+                ColumnBuffer chequeNumbers = new ColumnBuffer();
+                ColumnBuffer raw = new ColumnBuffer();
+                byte[] compressed = new byte[1 << 16];
+                long offset = 0;
+                for (int start = 0; start < records.size(); start += BLOCK_ROWS) {
+                    int end = Math.min(records.size(), start + BLOCK_ROWS);
+                    BlockInfo block = new BlockInfo();
+                    block.rows = end - start;
+                    block.minTimestamp = records.get(start).getTimestampMillis();
+                    block.maxTimestamp = records.get(end - 1).getTimestampMillis();
+                    block.minAccount = Integer.MAX_VALUE;
+                    block.maxAccount = Integer.MIN_VALUE;
+                    block.minAmount = Long.MAX_VALUE;
+                    block.maxAmount = Long.MIN_VALUE;
+                    for (int i = start; i < end; i++) {
+                        ChequeHistoryManager.ChequeRecord record = records.get(i);
+                        int account = accountIds.get(record.getAccountNumber());
+                        block.minAccount = Math.min(block.minAccount, account);
+                        block.maxAccount = Math.max(block.maxAccount, account);
+                        block.minAmount = Math.min(block.minAmount, record.getAmountMinorUnits());
+                        block.maxAmount = Math.max(block.maxAmount, record.getAmountMinorUnits());
+                    }
+
+                    timestamps.reset();
+                    accounts.reset();
+                    currencies.reset();
+                    amounts.reset();
+                    chequeNumbers.reset();
+                    long last = block.minTimestamp;
+                    for (int i = start; i < end; i++) {
+                        ChequeHistoryManager.ChequeRecord record = records.get(i);
+                        timestamps.putVarLong(record.getTimestampMillis() - last);
+                        last = record.getTimestampMillis();
+                        accounts.putVarLong(accountIds.get(record.getAccountNumber()));
+                        currencies.putVarLong(currencyIds.get(record.getCurrency()));
+                        // Subtracting the minimum keeps every amount non-negative and small
+                        amounts.putVarLong(record.getAmountMinorUnits() - block.minAmount);
+                        byte[] chequeNumber = record.getChequeNumber().getBytes(StandardCharsets.UTF_8);
+                        chequeNumbers.putVarLong(chequeNumber.length);
+                        chequeNumbers.putBytes(chequeNumber, 0, chequeNumber.length);
+                    }
+                    raw.reset();
+                    raw.putBytes(timestamps.bytes, 0, timestamps.length);
+                    raw.putBytes(accounts.bytes, 0, accounts.length);
+                    raw.putBytes(currencies.bytes, 0, currencies.length);
+                    raw.putBytes(amounts.bytes, 0, amounts.length);
+                    raw.putBytes(chequeNumbers.bytes, 0, chequeNumbers.length);
+
+                    deflater.reset();
+                    deflater.setInput(raw.bytes, 0, raw.length);
+                    deflater.finish();
+                    int compressedLength = 0;
+                    while (!deflater.finished()) {
+                        int n = deflater.deflate(compressed, 0, compressed.length);
+                        out.write(compressed, 0, n);
+                        compressedLength += n;
+                    }
+                    block.offset = offset;
+                    block.compressedLength = compressedLength;
+                    block.rawLength = raw.length;
+                    offset += compressedLength;
+                    blocks.add(block);
+                }
+
+                long metadataOffset = offset;
+                out.writeInt(VERSION);
+                out.writeLong(fromMillis);
+                out.writeInt(records.size());
+                out.writeShort(currencyIds.size());
+                for (int currency : currencyIds.keySet()) {
+                    out.writeShort(currency);
+                }
+                out.writeInt(accountIds.size());
+                for (String account : accountIds.keySet()) {
+                    out.writeUTF(account);
+                }
+                out.writeInt(blocks.size());
+                for (BlockInfo block : blocks) {
+                    out.writeInt(block.rows);
+                    out.writeLong(block.minTimestamp);
+                    out.writeLong(block.maxTimestamp);
+                    out.writeInt(block.minAccount);
+                    out.writeInt(block.maxAccount);
+                    out.writeLong(block.minAmount);
+                    out.writeLong(block.maxAmount);
+                    out.writeLong(block.offset);
+                    out.writeInt(block.compressedLength);
+                    out.writeInt(block.rawLength);
+                }
+                out.writeLong(metadataOffset);
+                out.writeInt(MAGIC);
+            } finally {
+                deflater.end();
+            }
+            java.nio.file.Files.move(temp, target, java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                    java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+            Logger.info("Archived " + records.size() + " cheques for " + month + " in " + blocks.size() + " blocks");
+        }
+
+        /**
+         * Passes every archived record in [fromMillis, toMillis), optionally for one account
+         * only, to the action in time order. Months outside the period are never opened,
+         * months without the account are skipped after reading their dictionary, and blocks
+         * are only inflated when their statistics overlap the query.
+         * @param accountNumber The account to match, or null for every account
+         * @return The number of records passed to the action
+         */
+        public int scan(long fromMillis, long toMillis, String accountNumber,
+                        java.util.function.Consumer<ChequeHistoryManager.ChequeRecord> action) throws IOException {
+            return scan(fromMillis, toMillis, accountNumber, Integer.MAX_VALUE, action);
+        }
+
+        /**
+         * Like scan, but stops once limit records have been passed to the action, so a caller
+         * reading one page never inflates blocks beyond it.
+         */
+        public int scan(long fromMillis, long toMillis, String accountNumber, int limit,
+                        java.util.function.Consumer<ChequeHistoryManager.ChequeRecord> action) throws IOException {
+            int matched = 0;
+            for (java.time.YearMonth month : listMonths()) {
+                if (matched >= limit) {
+                    break;
+                }
+                if (monthStartMillis(month.plusMonths(1)) <= fromMillis || monthStartMillis(month) >= toMillis) {
+                    continue;
+                }
+                matched += scanMonth(month, fromMillis, toMillis, accountNumber, limit - matched, action);
+            }
+            return matched;
+        }
+
+        /**
+         * @return The archived months in calendar order
+         */
+        public List<java.time.YearMonth> listMonths() throws IOException {
+            List<java.time.YearMonth> months = new ArrayList<>();
+            try (java.nio.file.DirectoryStream<java.nio.file.Path> files =
+                         java.nio.file.Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+                for (java.nio.file.Path file : files) {
+                    String name = file.getFileName().toString();
+                    months.add(java.time.YearMonth.parse(
+                            name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length())));
+                }
+            }
+            Collections.sort(months);
+            return months;
+        }
+
+        private int scanMonth(java.time.YearMonth month, long fromMillis, long toMillis, String accountNumber, int limit,
+                              java.util.function.Consumer<ChequeHistoryManager.ChequeRecord> action) throws IOException {
+            try (java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(monthPath(month),
+                    java.nio.file.StandardOpenOption.READ)) {
+                java.nio.MappedByteBuffer file = channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (file.capacity() < FOOTER_BYTES || file.getInt(file.capacity() - Integer.BYTES) != MAGIC) {
+                    throw new IOException("Not a cheque archive: " + monthPath(month));
+                }
+                long metadataOffset = file.getLong(file.capacity() - FOOTER_BYTES);
+                byte[] metadata = new byte[(int) (file.capacity() - FOOTER_BYTES - metadataOffset)];
+                file.get((int) metadataOffset, metadata);
+                java.io.DataInputStream in = new java.io.DataInputStream(new java.io.ByteArrayInputStream(metadata));
+                if (in.readInt() != VERSION) {
+                    throw new IOException("Unsupported cheque archive version: " + monthPath(month));
+                }
+                in.readLong();
+                in.readInt();
+                int[] currencies = new int[in.readUnsignedShort()];
+                for (int i = 0; i < currencies.length; i++) {
+                    currencies[i] = in.readUnsignedShort();
+                }
+                String[] accounts = new String[in.readInt()];
+                for (int i = 0; i < accounts.length; i++) {
+                    accounts[i] = in.readUTF();
+                }
+                int wanted = -1;
+                if (accountNumber != null) {
+                    wanted = Arrays.binarySearch(accounts, accountNumber);
+                    if (wanted < 0) {
+                        return 0;
+                    }
+                }
+
+                int matched = 0;
+                int blockCount = in.readInt();
+                java.util.zip.Inflater inflater = new java.util.zip.Inflater();
+                byte[] compressed = new byte[0];
+                byte[] raw = new byte[0];
+                int[] position = new int[1];
+                try {
+                    for (int b = 0; b < blockCount && matched < limit; b++) {
+                        BlockInfo block = readBlockInfo(in);
+                        if (block.maxTimestamp < fromMillis || block.minTimestamp >= toMillis
+                                || (wanted >= 0 && (wanted < block.minAccount || wanted > block.maxAccount))) {
+                            continue;
+                        }
+                        if (compressed.length < block.compressedLength) {
+                            compressed = new byte[block.compressedLength];
+                        }
+                        if (raw.length < block.rawLength) {
+                            raw = new byte[block.rawLength];
+                        }
+                        file.get((int) block.offset, compressed, 0, block.compressedLength);
+                        inflater.reset();
+                        inflater.setInput(compressed, 0, block.compressedLength);
+                        try {
+                            if (inflater.inflate(raw, 0, block.rawLength) != block.rawLength) {
+                                throw new IOException("Truncated block in " + monthPath(month));
+                            }
+                        } catch (java.util.zip.DataFormatException ex) {
+                            throw new IOException("Corrupt block in " + monthPath(month), ex);
+                        }
+
+                        // Columns follow one another, so decode each one in turn
+                        long[] timestamps = new long[block.rows];
+                        int[] accountColumn = new int[block.rows];
+                        int[] currencyColumn = new int[block.rows];
+                        long[] amounts = new long[block.rows];
+                        position[0] = 0;
+                        long last = block.minTimestamp;
+                        for (int i = 0; i < block.rows; i++) {
+                            last += readVarLong(raw, position);
+                            timestamps[i] = last;
+                        }
+                        for (int i = 0; i < block.rows; i++) {
+                            accountColumn[i] = (int) readVarLong(raw, position);
+                        }
+                        for (int i = 0; i < block.rows; i++) {
+                            currencyColumn[i] = (int) readVarLong(raw, position);
+                        }
+                        for (int i = 0; i < block.rows; i++) {
+                            amounts[i] = block.minAmount + readVarLong(raw, position);
+                        }
+                        for (int i = 0; i < block.rows && matched < limit; i++) {
+                            int length = (int) readVarLong(raw, position);
+                            int start = position[0];
+                            position[0] += length;
+                            if (timestamps[i] < fromMillis || timestamps[i] >= toMillis
+                                    || (wanted >= 0 && accountColumn[i] != wanted)) {
+                                continue;
+                            }
+                            action.accept(new ChequeHistoryManager.ChequeRecord(accounts[accountColumn[i]],
+                                    new String(raw, start, length, StandardCharsets.UTF_8),
+                                    currencies[currencyColumn[i]], amounts[i], timestamps[i]));
+                            matched++;
+                        }
+                    }
+                } finally {
+                    inflater.end();
+                }
+                return matched;
+            }
+        }
+
+        private static BlockInfo readBlockInfo(java.io.DataInputStream in) throws IOException {
+            BlockInfo block = new BlockInfo();
+            block.rows = in.readInt();
+            block.minTimestamp = in.readLong();
+            block.maxTimestamp = in.readLong();
+            block.minAccount = in.readInt();
+            block.maxAccount = in.readInt();
+            block.minAmount = in.readLong();
+            block.maxAmount = in.readLong();
+            block.offset = in.readLong();
+            block.compressedLength = in.readInt();
+            block.rawLength = in.readInt();
+            return block;
+        }
+
+        private static long readVarLong(byte[] bytes, int[] position) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position[0]++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        private java.nio.file.Path monthPath(java.time.YearMonth month) {
+            return directory.resolve(FILE_PREFIX + month + FILE_SUFFIX);
+        }
+
+        /**
+         * Growable byte array for building one column of a block.
+         */
+        private static final class ColumnBuffer {
+            private byte[] bytes = new byte[1024];
+            private int length;
+
+            void reset() {
+                length = 0;
+            }
+
+            /**
+             * Writes a non-negative value seven bits at a time, low bits first.
+             */
+            void putVarLong(long value) {
+                ensure(10);
+                while ((value & ~0x7FL) != 0) {
+                    bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                    value >>>= 7;
+                }
+                bytes[length++] = (byte) value;
+            }
+
+            void putBytes(byte[] src, int offset, int count) {
+                ensure(count);
+                System.arraycopy(src, offset, bytes, length, count);
+                length += count;
+            }
+
+            private void ensure(int extra) {
+                if (length + extra > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+                }
+            }
+        }
+    }
+
+    /**
+     * Streams a cheque report for a period straight from ChequeHistoryManager to a file.
+     * Records are read in fixed-size batches and formatted into one reusable byte buffer that
+     * is flushed to a FileChannel, optionally through gzip, so memory use does not depend on
+     * the length of the period.
+     */
+    static class ChequeReportWriter {
+        static final String HEADER = "Account Number,Cheque Number,Currency,Amount,Date\n";
+        private static final int BATCH_SIZE = 1024;
+        private static final int BUFFER_BYTES = 64 * 1024;
+        private static final int MAX_ROW_BYTES = 1024; // Rows are flushed before the buffer could overflow
+        private static final int MAX_FIELD_CHARS = 96;  // At most 4 UTF-8 bytes each, so two fields fit a row
+        private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+        private final ChequeHistoryManager.ChequeRecord[] batch = new ChequeHistoryManager.ChequeRecord[BATCH_SIZE];
+        private final java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(BUFFER_BYTES);
+        private final java.time.zone.ZoneRules zoneRules;
+
+        // Dates are formatted once per cached window, which never crosses local midnight or an offset change
+        private byte[] datePrefix; // "yyyy-MM-dd "
+        private long windowStart = Long.MAX_VALUE;
+        private long windowEnd = Long.MIN_VALUE;
+        private long offsetMillis;
+
+        private java.nio.channels.FileChannel channel;
+        private java.io.OutputStream gzip;
+
+        public ChequeReportWriter() {
+            this(java.time.ZoneId.systemDefault());
+        }
+
+        public ChequeReportWriter(java.time.ZoneId zone) {
+            this.zoneRules = zone.getRules();
+        }
+
+        /**
+         * Writes every record from fromMillis inclusive to toMillis exclusive, in time order.
+         * @param compress Whether to gzip the output
+         * @return The number of records written
+         */
+        public long writeReport(ChequeHistoryManager history, long fromMillis, long toMillis,
+                                java.nio.file.Path file, boolean compress) throws IOException {
+            ChequeHistoryManager.TimelineCursor cursor = new ChequeHistoryManager.TimelineCursor(fromMillis);
+            try (java.nio.channels.FileChannel out = java.nio.channels.FileChannel.open(file,
+                    java.nio.file.StandardOpenOption.CREATE,
+                    java.nio.file.StandardOpenOption.TRUNCATE_EXISTING,
+                    java.nio.file.StandardOpenOption.WRITE)) {
+                open(out, compress);
+                putHeader();
+                long written = putRows(history, cursor, toMillis);
+                finish();
+                return written;
+            } finally {
+                channel = null;
+                gzip = null;
+            }
+        }
+
+        /**
+         * Writes the rows of a period without a header, e.g. one partition of a larger report.
+         * @return The number of records written
+         */
+        long writeRows(ChequeHistoryManager history, long fromMillis, long toMillis,
+                       java.nio.channels.FileChannel out) throws IOException {
+            try {
+                open(out, false);
+                long written = putRows(history, new ChequeHistoryManager.TimelineCursor(fromMillis), toMillis);
+                finish();
+                return written;
+            } finally {
+                channel = null;
+            }
+        }
+
+        private long putRows(ChequeHistoryManager history, ChequeHistoryManager.TimelineCursor cursor,
+                             long toMillis) throws IOException {
+            long written = 0;
+            int count;
+            while ((count = history.nextInPeriod(cursor, toMillis, batch)) > 0) {
+                for (int i = 0; i < count; i++) {
+                    putRow(batch[i]);
+                    batch[i] = null;
+                }
+                written += count;
+            }
+            return written;
+        }
+
+        /**
+         * Starts writing to an already open channel; used with finish() and putRow when the
+         * caller feeds the records itself.
+         */
+        void open(java.nio.channels.FileChannel out, boolean compress) throws IOException {
+            this.channel = out;
+            this.gzip = compress
+                    ? new java.util.zip.GZIPOutputStream(java.nio.channels.Channels.newOutputStream(out), BUFFER_BYTES)
+                    : null;
+            buffer.clear();
+        }
+
+        void putHeader() throws IOException {
+            putAscii(HEADER);
+        }
+
+        void finish() throws IOException {
+            flush();
+            if (gzip != null) {
+                gzip.close(); // Writes the gzip trailer
+            }
+        }
+
+        void putRow(ChequeHistoryManager.ChequeRecord record) throws IOException {
+            if (buffer.remaining() < MAX_ROW_BYTES) {
+                flush();
+            }
+            putText(record.getAccountNumber());
+            buffer.put((byte) ',');
+            putText(record.getChequeNumber());
+            buffer.put((byte) ',');
+            putAscii(CurrencyRegistry.code(record.getCurrency()));
+            buffer.put((byte) ',');
+            putAmount(record.getAmountMinorUnits(), Money.scale(record.getCurrency()));
+            buffer.put((byte) ',');
+            putTimestamp(record.getTimestampMillis());
+            buffer.put((byte) '\n');
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            if (gzip != null) {
+                gzip.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            buffer.clear();
+        }
+
+        private void putAscii(String text) throws IOException {
+            for (int i = 0; i < text.length(); i++) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                buffer.put((byte) text.charAt(i));
+            }
+        }
+
+        /**
+         * Writes user-entered text as UTF-8, truncated so one row always fits the buffer.
+         */
+        private void putText(String text) {
+            int limit = Math.min(text.length(), MAX_FIELD_CHARS);
+            for (int i = 0; i < limit; i++) {
+                char c = text.charAt(i);
+                if (c < 0x80) {
+                    buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    buffer.put((byte) (0xC0 | (c >> 6)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < limit && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else {
+                    buffer.put((byte) (0xE0 | (c >> 12)));
+                    buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+        }
+
+        /**
+         * Writes minor units as a decimal amount, matching Money.format.
+         */
+        private void putAmount(long minorUnits, int scale) {
+            if (minorUnits < 0) {
+                buffer.put((byte) '-');
+            }
+            long unit = 1;
+            for (int i = 0; i < scale; i++) {
+                unit *= 10;
+            }
+            putDigits(Math.abs(minorUnits / unit), 1);
+            if (scale > 0) {
+                buffer.put((byte) '.');
+                putDigits(Math.abs(minorUnits % unit), scale);
+            }
+        }
+
+        private void putDigits(long value, int minDigits) {
+            int start = buffer.position();
+            int digits = 0;
+            do {
+                buffer.put((byte) ('0' + (int) (value % 10)));
+                value /= 10;
+                digits++;
+            } while (value > 0 || digits < minDigits);
+            // Digits were written least significant first
+            for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+                byte swap = buffer.get(i);
+                buffer.put(i, buffer.get(j));
+                buffer.put(j, swap);
+            }
+        }
+
+        private void putTimestamp(long millis) {
+            if (millis < windowStart || millis >= windowEnd) {
+                computeWindow(millis);
+            }
+            buffer.put(datePrefix);
+            int secondOfDay = (int) (Math.floorMod(millis + offsetMillis, DAY_MILLIS) / 1000);
+            putTwoDigits(secondOfDay / 3600);
+            buffer.put((byte) ':');
+            putTwoDigits(secondOfDay / 60 % 60);
+            buffer.put((byte) ':');
+            putTwoDigits(secondOfDay % 60);
+        }
+
+        private void putTwoDigits(int value) {
+            buffer.put((byte) ('0' + value / 10));
+            buffer.put((byte) ('0' + value % 10));
+        }
+
+        private void computeWindow(long millis) {
+            java.time.Instant instant = java.time.Instant.ofEpochMilli(millis);
+            offsetMillis = zoneRules.getOffset(instant).getTotalSeconds() * 1000L;
+            long localMillis = millis + offsetMillis;
+            windowStart = localMillis - Math.floorMod(localMillis, DAY_MILLIS) - offsetMillis;
+            windowEnd = windowStart + DAY_MILLIS;
+            java.time.zone.ZoneOffsetTransition previous = zoneRules.previousTransition(java.time.Instant.ofEpochMilli(millis + 1));
+            if (previous != null && previous.toEpochSecond() * 1000 > windowStart) {
+                windowStart = previous.toEpochSecond() * 1000;
+            }
+            java.time.zone.ZoneOffsetTransition next = zoneRules.nextTransition(instant);
+            if (next != null && next.toEpochSecond() * 1000 < windowEnd) {
+                windowEnd = next.toEpochSecond() * 1000;
+            }
+            datePrefix = (java.time.LocalDate.ofEpochDay(Math.floorDiv(localMillis, DAY_MILLIS))
+                    .format(DateTimeFormatter.ISO_LOCAL_DATE) + " ").getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Generates long cheque reports in parallel. The period is split into partitions of a
+     * configurable number of days, which a fork-join pool queries and formats into temporary
+     * files at the same time; the parts are then appended to the report in date order.
+     */
+    static class ParallelReportGenerator {
+        private final int partitionDays;
+        private final int parallelism;
+
+        /**
+         * @param partitionDays Days per partition, e.g. 1 for daily or 7 for weekly partitions
+         * @param parallelism Number of partitions formatted at the same time
+         */
+        public ParallelReportGenerator(int partitionDays, int parallelism) {
+            if (partitionDays <= 0 || parallelism <= 0) {
+                throw new IllegalArgumentException("Partition size and parallelism must be positive");
+            }
+            this.partitionDays = partitionDays;
+            this.parallelism = parallelism;
+        }
+
+        /**
+         * Writes the report for startDate to endDate inclusive, in time order.
+         * A period that fits in one partition is written directly.
+         * @return The number of records written
+         */
+        public long generate(ChequeHistoryManager history, LocalDate startDate, LocalDate endDate, java.time.ZoneId zone,
+                             java.nio.file.Path file, boolean compress) throws IOException {
+            List<Long> bounds = new ArrayList<>();
+            for (LocalDate day = startDate; !day.isAfter(endDate); day = day.plusDays(partitionDays)) {
+                bounds.add(day.atStartOfDay(zone).toInstant().toEpochMilli());
+            }
+            bounds.add(endDate.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli());
+            int partitions = bounds.size() - 1;
+            if (partitions <= 1 || parallelism == 1) {
+                return new ChequeReportWriter(zone).writeReport(history, bounds.get(0), bounds.get(partitions), file, compress);
+            }
+
+            java.nio.file.Path directory = file.toAbsolutePath().getParent();
+            java.nio.file.Path[] parts = new java.nio.file.Path[partitions];
+            long[] counts = new long[partitions];
+            java.util.concurrent.ForkJoinPool pool = new java.util.concurrent.ForkJoinPool(parallelism);
+            try {
+                for (int i = 0; i < partitions; i++) {
+                    parts[i] = java.nio.file.Files.createTempFile(directory, file.getFileName().toString(), ".part");
+                }
+                pool.invoke(new PartitionTask(history, zone, bounds, parts, counts, 0, partitions));
+                return merge(parts, counts, file, compress);
+            } catch (java.io.UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+                for (java.nio.file.Path part : parts) {
+                    if (part != null) {
+                        java.nio.file.Files.deleteIfExists(part);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Appends the parts to the report in partition order, behind a single header.
+         */
+        private static long merge(java.nio.file.Path[] parts, long[] counts, java.nio.file.Path file,
+                                  boolean compress) throws IOException {
+            long total = 0;
+            try (java.nio.channels.FileChannel out = java.nio.channels.FileChannel.open(file,
+                    java.nio.file.StandardOpenOption.CREATE,
+                    java.nio.file.StandardOpenOption.TRUNCATE_EXISTING,
+                    java.nio.file.StandardOpenOption.WRITE)) {
+                if (compress) {
+                    java.util.zip.GZIPOutputStream gzip = new java.util.zip.GZIPOutputStream(
+                            java.nio.channels.Channels.newOutputStream(out), 64 * 1024);
+                    gzip.write(ChequeReportWriter.HEADER.getBytes(StandardCharsets.US_ASCII));
+                    for (int i = 0; i < parts.length; i++) {
+                        java.nio.file.Files.copy(parts[i], gzip);
+                        total += counts[i];
+                    }
+                    gzip.close();
+                } else {
+                    out.write(java.nio.ByteBuffer.wrap(ChequeReportWriter.HEADER.getBytes(StandardCharsets.US_ASCII)));
+                    for (int i = 0; i < parts.length; i++) {
+                        try (java.nio.channels.FileChannel in = java.nio.channels.FileChannel.open(parts[i])) {
+                            long size = in.size();
+                            for (long position = 0; position < size; ) {
+                                position += in.transferTo(position, size - position, out);
+                            }
+                        }
+                        total += counts[i];
+                    }
+                }
+            }
+            return total;
+        }
+
+        /**
+         * Formats a contiguous range of partitions, splitting it in half until one partition is left.
+         */
+        @SuppressWarnings("serial") // Never serialized; ForkJoinTask is Serializable only by inheritance
+        private static class PartitionTask extends java.util.concurrent.RecursiveAction {
+            private final ChequeHistoryManager history;
+            private final java.time.ZoneId zone;
+            private final List<Long> bounds;
+            private final java.nio.file.Path[] parts;
+            private final long[] counts;
+            private final int from;
+            private final int to;
+
+            PartitionTask(ChequeHistoryManager history, java.time.ZoneId zone, List<Long> bounds,
+                          java.nio.file.Path[] parts, long[] counts, int from, int to) {
+                this.history = history;
+                this.zone = zone;
+                this.bounds = bounds;
+                this.parts = parts;
+                this.counts = counts;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from > 1) {
+                    int mid = (from + to) >>> 1;
+                    invokeAll(new PartitionTask(history, zone, bounds, parts, counts, from, mid),
+                            new PartitionTask(history, zone, bounds, parts, counts, mid, to));
+                    return;
+                }
+                try (java.nio.channels.FileChannel out = java.nio.channels.FileChannel.open(parts[from],
+                        java.nio.file.StandardOpenOption.TRUNCATE_EXISTING,
+                        java.nio.file.StandardOpenOption.WRITE)) {
+                    counts[from] = new ChequeReportWriter(zone).writeRows(history, bounds.get(from), bounds.get(from + 1), out);
+                } catch (IOException e) {
+                    throw new java.io.UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes several cheque reports in one pass over the history. The specs may have
+     * overlapping periods and different filters; records are read once across the union of
+     * the periods, skipping any gap between them, and each is routed to every report whose
+     * period and filters it matches, so N reports cost about the reading of the widest one.
+     */
+    static class MultiReportGenerator {
+        /**
+         * One report: a named period with optional account and currency filters.
+         */
+        static final class ReportSpec {
+            private final String name;
+            private final LocalDate startDate;
+            private final LocalDate endDate;
+            private final String accountNumber;
+            private final int currency;
+            private long fromMillis;
+            private long toMillis;
+
+            /**
+             * @param accountNumber Only this account's cheques, or null for every account
+             * @param currency Only cheques in this currency ordinal, or -1 for every currency
+             */
+            ReportSpec(String name, LocalDate startDate, LocalDate endDate, String accountNumber, int currency) {
+                if (startDate.isAfter(endDate)) {
+                    throw new IllegalArgumentException("Start date cannot be after end date in report " + name);
+                }
+                this.name = name;
+                this.startDate = startDate;
+                this.endDate = endDate;
+                this.accountNumber = accountNumber;
+                this.currency = currency;
+            }
+
+            /**
+             * Parses "name,startDate,endDate[,account[,currency]]" with ISO dates; an empty
+             * account or currency means no filter.
+             */
+            static ReportSpec parse(String line) {
+                String[] fields = line.split(",", -1);
+                if (fields.length < 3 || fields.length > 5 || fields[0].trim().isEmpty()) {
+                    throw new IllegalArgumentException("Expected name,startDate,endDate[,account[,currency]]: " + line);
+                }
+                String account = fields.length > 3 && !fields[3].trim().isEmpty() ? fields[3].trim() : null;
+                int currency = -1;
+                if (fields.length > 4 && !fields[4].trim().isEmpty()) {
+                    currency = CurrencyRegistry.parse(fields[4]);
+                    if (currency < 0) {
+                        throw new IllegalArgumentException("Unknown currency: " + fields[4].trim());
+                    }
+                }
+                try {
+                    return new ReportSpec(fields[0].trim(),
+                            LocalDate.parse(fields[1].trim(), DateTimeFormatter.ISO_LOCAL_DATE),
+                            LocalDate.parse(fields[2].trim(), DateTimeFormatter.ISO_LOCAL_DATE), account, currency);
+                } catch (java.time.format.DateTimeParseException ex) {
+                    throw new IllegalArgumentException("Invalid date in report spec: " + line);
+                }
+            }
+
+            public String getName() {
+                return name;
+            }
+
+            public String fileName(boolean compress) {
+                return name + "_" + startDate.format(DateTimeFormatter.ISO_LOCAL_DATE) + "_to_"
+                        + endDate.format(DateTimeFormatter.ISO_LOCAL_DATE) + (compress ? ".csv.gz" : ".csv");
+            }
+
+            private boolean matches(ChequeHistoryManager.ChequeRecord record) {
+                return record.getTimestampMillis() < toMillis
+                        && (accountNumber == null || accountNumber.equals(record.getAccountNumber()))
+                        && (currency < 0 || currency == record.getCurrency());
+            }
+        }
+
+        /**
+         * A report being written: its spec, output channel and writer.
+         */
+        private static final class OpenReport {
+            private final ReportSpec spec;
+            private final java.nio.channels.FileChannel channel;
+            private final ChequeReportWriter writer;
+            private long written;
+            private boolean finished;
+
+            OpenReport(ReportSpec spec, java.nio.channels.FileChannel channel, ChequeReportWriter writer) {
+                this.spec = spec;
+                this.channel = channel;
+                this.writer = writer;
+            }
+        }
+
+        private static final int BATCH_SIZE = 1024;
+
+        private final java.time.ZoneId zone;
+
+        public MultiReportGenerator(java.time.ZoneId zone) {
+            this.zone = zone;
+        }
+
+        /**
+         * Writes every report into the directory in one scan of the history.
+         * @return The number of records written to each report, in the order of specs
+         * @throws IllegalArgumentException If two specs would write the same file
+         */
+        public long[] generate(ChequeHistoryManager history, List<ReportSpec> specs, java.nio.file.Path directory,
+                               boolean compress) throws IOException {
+            if (specs.isEmpty()) {
+                return new long[0];
+            }
+            Set<String> fileNames = new HashSet<>();
+            for (ReportSpec spec : specs) {
+                if (!fileNames.add(spec.fileName(compress))) {
+                    throw new IllegalArgumentException("More than one report would be written to " + spec.fileName(compress));
+                }
+            }
+            List<OpenReport> pending = new ArrayList<>(specs.size());
+            long fromMillis = Long.MAX_VALUE;
+            long toMillis = Long.MIN_VALUE;
+            try {
+                for (ReportSpec spec : specs) {
+                    spec.fromMillis = spec.startDate.atStartOfDay(zone).toInstant().toEpochMilli();
+                    spec.toMillis = spec.endDate.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+                    fromMillis = Math.min(fromMillis, spec.fromMillis);
+                    toMillis = Math.max(toMillis, spec.toMillis);
+                    java.nio.channels.FileChannel channel = java.nio.channels.FileChannel.open(
+                            directory.resolve(spec.fileName(compress)),
+                            java.nio.file.StandardOpenOption.CREATE,
+                            java.nio.file.StandardOpenOption.TRUNCATE_EXISTING,
+                            java.nio.file.StandardOpenOption.WRITE);
+                    OpenReport report = new OpenReport(spec, channel, new ChequeReportWriter(zone));
+                    pending.add(report);
+                    report.writer.open(channel, compress);
+                    report.writer.putHeader();
+                }
+                long[] written = new long[specs.size()];
+                List<OpenReport> waiting = new ArrayList<>(pending);
+                waiting.sort(Comparator.comparingLong(r -> r.spec.fromMillis));
+                List<OpenReport> active = new ArrayList<>();
+                int next = 0;
+
+                // Records arrive in time order, so a report joins when its period starts and
+                // is finished as soon as its period ends
+                ChequeHistoryManager.TimelineCursor cursor = new ChequeHistoryManager.TimelineCursor(fromMillis);
+                ChequeHistoryManager.ChequeRecord[] batch = new ChequeHistoryManager.ChequeRecord[BATCH_SIZE];
+                int count;
+                while ((count = history.nextInPeriod(cursor, toMillis, batch)) > 0) {
+                    for (int i = 0; i < count; i++) {
+                        ChequeHistoryManager.ChequeRecord record = batch[i];
+                        batch[i] = null;
+                        long timestamp = record.getTimestampMillis();
+                        while (next < waiting.size() && waiting.get(next).spec.fromMillis <= timestamp) {
+                            active.add(waiting.get(next++));
+                        }
+                        for (int r = active.size() - 1; r >= 0; r--) {
+                            OpenReport report = active.get(r);
+                            if (timestamp >= report.spec.toMillis) {
+                                finish(report);
+                                active.remove(r);
+                            } else if (report.spec.matches(record)) {
+                                report.writer.putRow(record);
+                                report.written++;
+                            }
+                        }
+                    }
+                    if (active.isEmpty()) {
+                        if (next == waiting.size()) {
+                            break;
+                        }
+                        // Every record read so far precedes the next period, so jump over the gap
+                        cursor = new ChequeHistoryManager.TimelineCursor(waiting.get(next).spec.fromMillis);
+                    }
+                }
+                for (int r = 0; r < pending.size(); r++) {
+                    finish(pending.get(r));
+                    written[r] = pending.get(r).written;
+                }
+                return written;
+            } finally {
+                for (OpenReport report : pending) {
+                    report.channel.close();
+                }
+            }
+        }
+
+        private static void finish(OpenReport report) throws IOException {
+            if (!report.finished) {
+                report.writer.finish();
+                report.finished = true;
+                Logger.info("Report " + report.spec.getName() + " written with " + report.written + " records");
+            }
+        }
+    }
+
+    /**
+     * Service for detecting fraudulent cheque activities.
+     * Implements various fraud detection mechanisms and uses ChequeHistoryManager.
+     */
+    static class FraudDetectionService {
+        private FraudDetection fraudDetection;
+        private ChequeHistoryManager historyManager;
+        private HeavyHitterTracker heavyHitterTracker;
+        private FraudScoringModel scoringModel; // Off until a trained model is loaded
+        private ChequeFingerprintIndex fingerprintIndex;
+        private Map<String, List<ChequeTransaction>> recentTransactions;
+
+        // Fraud detection thresholds are read from FraudThresholdConfig once per cheque
+
+        // Fraud alert levels
+        public enum AlertLevel {
+            LOW,
+            MEDIUM,
+            HIGH,
+            CRITICAL
+        }
+
+        public FraudDetectionService() {
+            this.fraudDetection = new FraudDetection();
+            this.recentTransactions = new HashMap<>();
+        }
+
+        public void setHistoryManager(ChequeHistoryManager historyManager) {
+            this.historyManager = historyManager;
+        }
+
+        /**
+         * Sets the heavy-hitter tracker used as a cheap pre-check for unusual frequency.
+         * The tracker must be fed every cheque before it is recorded in history, and its
+         * window must cover the history manager's recent-cheque window.
+         */
+        public void setHeavyHitterTracker(HeavyHitterTracker heavyHitterTracker) {
+            this.heavyHitterTracker = heavyHitterTracker;
+        }
+
+        /**
+         * Sets the trained model that can raise the alert level on continuous evidence, or null to use the rules alone.
+         */
+        public void setScoringModel(FraudScoringModel scoringModel) {
+            this.scoringModel = scoringModel;
+        }
+
+        /**
+         * Sets the book-wide fingerprint index used to catch cheques re-presented under another account.
+         */
+        public void setFingerprintIndex(ChequeFingerprintIndex fingerprintIndex) {
+            this.fingerprintIndex = fingerprintIndex;
+        }
+
+        public boolean isFraudulentCheque(String accountId, String chequeNumber, int currency, double amount) {
+            FraudThresholds thresholds = FraudThresholdConfig.current();
+            FraudScoringModel model = scoringModel;
+            // Read before checkSuspiciousActivity adds this cheque to the account's profile
+            double amountZScore = model != null ? fraudDetection.amountZScore(accountId, amount) : 0.0;
+            boolean isDuplicate = checkDuplicateCheque(accountId, chequeNumber);
+            boolean isGlobalDuplicate = checkGlobalDuplicate(accountId, chequeNumber, currency, amount);
+            boolean isAbnormal = checkAbnormalAmount(amount, thresholds);
+            boolean isSuspicious = checkSuspiciousActivity(accountId, amount, thresholds);
+            boolean isVelocityFraud = checkVelocityFraud(accountId, amount, thresholds);
+            int similarCount = countSimilarAmounts(accountId, amount, thresholds);
+            boolean isPatternFraud = checkPatternFraud(accountId, similarCount);
+
+            boolean isHistoricalDuplicate = false;
+            boolean isUnusualFrequency = false;
+            boolean isSimilarToRecent = false;
+            double frequencyRatio = 0.0;
+
+            if (historyManager != null) {
+                isHistoricalDuplicate = checkHistoricalDuplicate(accountId, chequeNumber);
+                frequencyRatio = computeFrequencyRatio(accountId, thresholds, model != null);
+                isUnusualFrequency = checkUnusualFrequency(frequencyRatio, thresholds);
+                isSimilarToRecent = checkSimilarToRecent(accountId, amount, thresholds);
+            }
+
+            logFraudChecks(accountId, chequeNumber, amount, isDuplicate, isGlobalDuplicate, isAbnormal,
+                    isSuspicious, isVelocityFraud, isPatternFraud,
+                    isHistoricalDuplicate, isUnusualFrequency, isSimilarToRecent);
+
+            AlertLevel ruleLevel = determineAlertLevel(isDuplicate, isAbnormal,
+                    isSuspicious, isVelocityFraud, isPatternFraud,
+                    isHistoricalDuplicate, isUnusualFrequency, isSimilarToRecent);
+            // The fingerprint carries no account or date, so a match across accounts is raised
+            // for review but does not reject the cheque on its own
+            if (isGlobalDuplicate && ruleLevel.compareTo(AlertLevel.HIGH) < 0) {
+                ruleLevel = AlertLevel.HIGH;
+            }
+
+            // The model can raise the alert level on continuous evidence but never lowers the rules
+            AlertLevel alertLevel = ruleLevel;
+            if (model != null) {
+                double fraudScore = model.score(amountZScore,
+                        recentTransactions.get(accountId).size(), similarCount, frequencyRatio);
+                AlertLevel modelLevel = model.toAlertLevel(fraudScore);
+                if (modelLevel.compareTo(ruleLevel) > 0) {
+                    alertLevel = modelLevel;
+                }
+                System.out.printf("Fraud Score: %.3f%n", fraudScore);
+            }
+            System.out.println("Fraud Alert Level: " + alertLevel);
+
+            return isDuplicate || isAbnormal || isSuspicious || isVelocityFraud || isPatternFraud ||
+                    isHistoricalDuplicate || isUnusualFrequency || isSimilarToRecent;
+        }
+
+        private boolean checkDuplicateCheque(String accountId, String chequeNumber) {
+            return fraudDetection.isDuplicateCheque(accountId, chequeNumber);
+        }
+
+        private boolean checkGlobalDuplicate(String accountId, String chequeNumber, int currency, double amount) {
+            return fingerprintIndex != null && fingerprintIndex.checkAndRecord(accountId, chequeNumber, currency, amount);
+        }
+
+        private boolean checkAbnormalAmount(double amount, FraudThresholds thresholds) {
+            return fraudDetection.isAbnormalAmount(amount, thresholds);
+        }
+
+        private boolean checkSuspiciousActivity(String accountId, double amount, FraudThresholds thresholds) {
+            return fraudDetection.isSuspiciousActivity(accountId, amount, thresholds);
+        }
+
+        private boolean checkVelocityFraud(String accountId, double amount, FraudThresholds thresholds) {
+            if (!recentTransactions.containsKey(accountId)) {
                 recentTransactions.put(accountId, new ArrayList<>());
             }
             ChequeTransaction currentTransaction = new ChequeTransaction(amount, java.time.LocalDate.now());
             List<ChequeTransaction> transactions = recentTransactions.get(accountId);
             transactions.add(currentTransaction);
 
-            java.time.LocalDate cutoffDate = java.time.LocalDate.now().minusDays(VELOCITY_CHECK_DAYS);
+            java.time.LocalDate cutoffDate = java.time.LocalDate.now().minusDays(thresholds.velocityCheckDays);
             long recentCount = transactions.stream()
                     .filter(t -> !t.getDate().isBefore(cutoffDate))
                     .count();
@@ -1606,47 +5901,66 @@ public class MainApplication {
                     .filter(t -> !t.getDate().isBefore(cutoffDate))
                     .toList());
 
-            return recentCount > VELOCITY_THRESHOLD;
+            return recentCount > thresholds.velocityThreshold;
         }
 
-        private boolean checkPatternFraud(String accountId, double amount) {
-            if (!recentTransactions.containsKey(accountId)) {
-                return false;
-            }
+        private int countSimilarAmounts(String accountId, double amount, FraudThresholds thresholds) {
             List<ChequeTransaction> transactions = recentTransactions.get(accountId);
-            if (transactions.size() < 3) {
-                return false;
+            if (transactions == null) {
+                return 0;
             }
-            List<Double> amounts = transactions.stream()
-                    .map(ChequeTransaction::getAmount)
-                    .toList();
-            double similarCount = 0;
-            for (Double pastAmount : amounts) {
+            int similarCount = 0;
+            for (ChequeTransaction transaction : transactions) {
+                double pastAmount = transaction.getAmount();
                 double similarity = 1.0 - Math.abs(pastAmount - amount) / Math.max(pastAmount, amount);
-                if (similarity > PATTERN_THRESHOLD) {
+                if (similarity > thresholds.patternThreshold) {
                     similarCount++;
                 }
             }
+            return similarCount;
+        }
+
+        private boolean checkPatternFraud(String accountId, int similarCount) {
+            if (!recentTransactions.containsKey(accountId)) {
+                return false;
+            }
+            if (recentTransactions.get(accountId).size() < 3) {
+                return false;
+            }
             return similarCount >= 3;
         }
 
         private boolean checkHistoricalDuplicate(String accountId, String chequeNumber) {
-            List<String> historicalCheques = historyManager.getChequeNumbers(accountId);
-            return historicalCheques.contains(chequeNumber);
+            return historyManager.hasChequeNumber(accountId, chequeNumber);
         }
 
-        private boolean checkUnusualFrequency(String accountId) {
+        /**
+         * Ratio of recent cheques to the account's average monthly count, or 0 when there is too
+         * little history to judge. Unless exact is set, a ratio that cannot flag may also read as 0.
+         */
+        private double computeFrequencyRatio(String accountId, FraudThresholds thresholds, boolean exact) {
+            // Flagging needs recent > threshold * total / 3 with total >= minCheques, so it needs more
+            // than threshold * minCheques / 3 recent cheques. The sketch never undercounts, so an
+            // estimate at or below that bound rules it out without touching history.
+            if (!exact && heavyHitterTracker != null && heavyHitterTracker.estimateCount(accountId)
+                    <= thresholds.unusualFrequencyThreshold * thresholds.minChequesForFrequencyCheck / 3.0) {
+                return 0.0;
+            }
             int totalCheques = historyManager.getTotalChequeCount(accountId);
             int recentCheques = historyManager.getRecentChequeCount(accountId);
-            if (totalCheques < 10) {
-                return false;
+            if (totalCheques < thresholds.minChequesForFrequencyCheck || totalCheques == 0) {
+                return 0.0;
             }
             double avgMonthlyFrequency = totalCheques / 3.0;
-            return recentCheques > avgMonthlyFrequency * UNUSUAL_FREQUENCY_THRESHOLD;
+            return recentCheques / avgMonthlyFrequency;
         }
 
-        private boolean checkSimilarToRecent(String accountId, double amount) {
-            return historyManager.hasSimilarRecentCheque(accountId, amount, SIMILAR_AMOUNT_THRESHOLD);
+        private boolean checkUnusualFrequency(double frequencyRatio, FraudThresholds thresholds) {
+            return frequencyRatio > thresholds.unusualFrequencyThreshold;
+        }
+
+        private boolean checkSimilarToRecent(String accountId, double amount, FraudThresholds thresholds) {
+            return historyManager.hasSimilarRecentCheque(accountId, amount, thresholds.similarAmountThreshold);
         }
 
         private AlertLevel determineAlertLevel(boolean isDuplicate, boolean isAbnormal,
@@ -1674,7 +5988,8 @@ public class MainApplication {
         }
 
         private void logFraudChecks(String accountId, String chequeNumber, double amount,
-                                    boolean isDuplicate, boolean isAbnormal, boolean isSuspicious,
+                                    boolean isDuplicate, boolean isGlobalDuplicate,
+                                    boolean isAbnormal, boolean isSuspicious,
                                     boolean isVelocityFraud, boolean isPatternFraud,
                                     boolean isHistoricalDuplicate, boolean isUnusualFrequency,
                                     boolean isSimilarToRecent) {
@@ -1683,6 +5998,9 @@ public class MainApplication {
 
             System.out.println("\n--- Basic Checks ---");
             System.out.println("Duplicate Check: " + formatCheckResult(isDuplicate));
+            if (fingerprintIndex != null) {
+                System.out.println("Global Duplicate Check: " + formatCheckResult(isGlobalDuplicate));
+            }
             System.out.println("Abnormal Amount Check: " + formatCheckResult(isAbnormal));
             System.out.println("Suspicious Activity Check: " + formatCheckResult(isSuspicious));
             System.out.println("Velocity Check: " + formatCheckResult(isVelocityFraud));
@@ -1850,8 +6168,7 @@ public class MainApplication {
         }
 
         private boolean checkHistoricalDuplicate(String accountId, String chequeNumber) {
-            List<String> historicalCheques = historyManager.getChequeNumbers(accountId);
-            return historicalCheques.contains(chequeNumber);
+            return historyManager.hasChequeNumber(accountId, chequeNumber);
         }
 
         private boolean checkUnusualFrequency(String accountId) {
@@ -2090,8 +6407,7 @@ public class MainApplication {
         }
 
         private boolean checkHistoricalDuplicate(String accountId, String chequeNumber) {
-            List<String> historicalCheques = historyManager.getChequeNumbers(accountId);
-            return historicalCheques.contains(chequeNumber);
+            return historyManager.hasChequeNumber(accountId, chequeNumber);
         }
 
         private boolean checkUnusualFrequency(String accountId) {
@@ -2205,10 +6521,6 @@ public class MainApplication {
      * Core fraud detection class that implements fundamental fraud detection mechanisms.
      */
     static class FraudDetection {
-        private static final double ABNORMAL_AMOUNT_THRESHOLD = 10000.0;
-        private static final double SUSPICIOUS_ACTIVITY_MULTIPLIER = 10.0;
-        private static final double AMOUNT_VARIANCE_THRESHOLD = 0.05;
-
         private Map<String, Set<String>> chequeRegistry = new HashMap<>();
         private Map<String, Double> accountActivity = new HashMap<>();
         private Map<String, List<TransactionRecord>> accountTransactionHistory = new HashMap<>();
@@ -2227,18 +6539,26 @@ public class MainApplication {
         }
 
         public boolean isAbnormalAmount(double amount) {
-            return amount > ABNORMAL_AMOUNT_THRESHOLD;
+            return isAbnormalAmount(amount, FraudThresholdConfig.current());
+        }
+
+        public boolean isAbnormalAmount(double amount, FraudThresholds thresholds) {
+            return amount > thresholds.abnormalAmountThreshold;
         }
 
         public boolean isSuspiciousActivity(String accountId, double amount) {
+            return isSuspiciousActivity(accountId, amount, FraudThresholdConfig.current());
+        }
+
+        public boolean isSuspiciousActivity(String accountId, double amount, FraudThresholds thresholds) {
             double totalActivity = accountActivity.containsKey(accountId) ?
                     accountActivity.get(accountId) : 0.0;
             totalActivity += amount;
             accountActivity.put(accountId, totalActivity);
             recordTransaction(accountId, amount);
             updateAccountProfile(accountId, amount);
-            boolean exceedsThreshold = totalActivity > ABNORMAL_AMOUNT_THRESHOLD * SUSPICIOUS_ACTIVITY_MULTIPLIER;
-            boolean abnormalBehavior = isAbnormalBehavior(accountId, amount);
+            boolean exceedsThreshold = totalActivity > thresholds.abnormalAmountThreshold * thresholds.suspiciousActivityMultiplier;
+            boolean abnormalBehavior = isAbnormalBehavior(accountId, amount, thresholds);
             return exceedsThreshold || abnormalBehavior;
         }
 
@@ -2262,7 +6582,24 @@ public class MainApplication {
             profile.updateWithTransaction(amount);
         }
 
-        private boolean isAbnormalBehavior(String accountId, double amount) {
+        /**
+         * Number of standard deviations the amount lies from the account's average,
+         * or 0 until the account has enough transactions to have a spread.
+         */
+        public double amountZScore(String accountId, double amount) {
+            AccountProfile profile = accountProfiles.get(accountId);
+            if (profile == null || profile.transactionCount < 2) {
+                return 0.0;
+            }
+            double mean = profile.totalAmount / profile.transactionCount;
+            double variance = profile.sumOfSquares / profile.transactionCount - mean * mean;
+            if (variance <= 0.0) {
+                return 0.0;
+            }
+            return (amount - mean) / Math.sqrt(variance);
+        }
+
+        private boolean isAbnormalBehavior(String accountId, double amount, FraudThresholds thresholds) {
             if (!accountProfiles.containsKey(accountId)) {
                 return false;
             }
@@ -2270,7 +6607,7 @@ public class MainApplication {
             if (profile.transactionCount >= 5) {
                 double avgAmount = profile.totalAmount / profile.transactionCount;
                 double variance = Math.abs(amount - avgAmount) / avgAmount;
-                return variance > AMOUNT_VARIANCE_THRESHOLD && amount > avgAmount;
+                return variance > thresholds.amountVarianceThreshold && amount > avgAmount;
             }
             return false;
         }
@@ -2287,12 +6624,14 @@ public class MainApplication {
 
         private static class AccountProfile {
             private double totalAmount = 0.0;
+            private double sumOfSquares = 0.0;
             private int transactionCount = 0;
             private double maxAmount = 0.0;
             private double minAmount = Double.MAX_VALUE;
 
             public void updateWithTransaction(double amount) {
                 totalAmount += amount;
+                sumOfSquares += amount * amount;
                 transactionCount++;
                 maxAmount = Math.max(maxAmount, amount);
                 minAmount = Math.min(minAmount, amount);
@@ -2300,6 +6639,747 @@ public class MainApplication {
         }
     }
 
+    /**
+     * Linear or logistic fraud scoring model over continuous cheque features.
+     * Weights are trained offline and loaded from a properties file; batch scoring works on one
+     * primitive array per feature so the weighted sum runs as a straight loop over contiguous memory.
+     */
+    static class FraudScoringModel {
+        static final int AMOUNT_ZSCORE = 0;
+        static final int VELOCITY = 1;
+        static final int SIMILARITY_COUNT = 2;
+        static final int FREQUENCY_RATIO = 3;
+        static final int FEATURE_COUNT = 4;
+
+        private static final String[] FEATURE_NAMES = {"amountZScore", "velocity", "similarityCount", "frequencyRatio"};
+
+        private final boolean logistic;
+        private final double bias;
+        private final double amountZScoreWeight;
+        private final double velocityWeight;
+        private final double similarityCountWeight;
+        private final double frequencyRatioWeight;
+        private final double mediumCutoff;
+        private final double highCutoff;
+        private final double criticalCutoff;
+
+        /**
+         * @param logistic Whether the weighted sum is passed through a sigmoid
+         * @param bias The intercept
+         * @param weights One weight per feature, indexed by the feature constants
+         * @param mediumCutoff Lowest score mapped to MEDIUM
+         * @param highCutoff Lowest score mapped to HIGH
+         * @param criticalCutoff Lowest score mapped to CRITICAL
+         */
+        FraudScoringModel(boolean logistic, double bias, double[] weights,
+                          double mediumCutoff, double highCutoff, double criticalCutoff) {
+            if (weights.length != FEATURE_COUNT) {
+                throw new IllegalArgumentException("Expected " + FEATURE_COUNT + " weights but got " + weights.length);
+            }
+            if (!(mediumCutoff <= highCutoff && highCutoff <= criticalCutoff)) {
+                throw new IllegalArgumentException("Alert level cutoffs must be ascending");
+            }
+            this.logistic = logistic;
+            this.bias = bias;
+            this.amountZScoreWeight = weights[AMOUNT_ZSCORE];
+            this.velocityWeight = weights[VELOCITY];
+            this.similarityCountWeight = weights[SIMILARITY_COUNT];
+            this.frequencyRatioWeight = weights[FREQUENCY_RATIO];
+            this.mediumCutoff = mediumCutoff;
+            this.highCutoff = highCutoff;
+            this.criticalCutoff = criticalCutoff;
+        }
+
+        /**
+         * Loads a model from a properties file with keys model.type (linear or logistic, default logistic),
+         * model.bias, model.weight.&lt;feature&gt; and model.cutoff.medium/high/critical.
+         * A missing bias or weight is 0, leaving that feature out; the cutoffs are required.
+         */
+        static FraudScoringModel load(java.nio.file.Path file) throws IOException {
+            Properties props = new Properties();
+            try (java.io.Reader reader = java.nio.file.Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                props.load(reader);
+            }
+            String type = props.getProperty("model.type", "logistic").trim();
+            if (!type.equalsIgnoreCase("logistic") && !type.equalsIgnoreCase("linear")) {
+                throw new IllegalArgumentException("Unknown model type: " + type);
+            }
+            double[] weights = new double[FEATURE_COUNT];
+            for (int i = 0; i < FEATURE_COUNT; i++) {
+                weights[i] = doubleValue(props, "model.weight." + FEATURE_NAMES[i], 0.0);
+            }
+            return new FraudScoringModel(type.equalsIgnoreCase("logistic"),
+                    doubleValue(props, "model.bias", 0.0), weights,
+                    requiredDouble(props, "model.cutoff.medium"),
+                    requiredDouble(props, "model.cutoff.high"),
+                    requiredDouble(props, "model.cutoff.critical"));
+        }
+
+        private static double doubleValue(Properties props, String key, double defaultValue) {
+            String value = props.getProperty(key);
+            return value == null ? defaultValue : Double.parseDouble(value.trim());
+        }
+
+        private static double requiredDouble(Properties props, String key) {
+            String value = props.getProperty(key);
+            if (value == null) {
+                throw new IllegalArgumentException("Missing " + key + " in fraud model");
+            }
+            return Double.parseDouble(value.trim());
+        }
+
+        /**
+         * Scores a single cheque.
+         */
+        public double score(double amountZScore, double velocity, double similarityCount, double frequencyRatio) {
+            double z = bias
+                    + amountZScoreWeight * amountZScore
+                    + velocityWeight * velocity
+                    + similarityCountWeight * similarityCount
+                    + frequencyRatioWeight * frequencyRatio;
+            return logistic ? sigmoid(z) : z;
+        }
+
+        /**
+         * Scores the first n cheques of a batch, one array per feature, into scores.
+         * The weighted sum is a branch-free loop over primitive arrays that the JIT compiles
+         * to SIMD instructions; the sigmoid is applied in a separate pass.
+         */
+        public void scoreBatch(double[] amountZScores, double[] velocities, double[] similarityCounts,
+                               double[] frequencyRatios, int n, double[] scores) {
+            if (amountZScores.length < n || velocities.length < n || similarityCounts.length < n
+                    || frequencyRatios.length < n || scores.length < n) {
+                throw new IllegalArgumentException("Feature and score arrays must hold at least " + n + " entries");
+            }
+            final double b = bias;
+            final double wz = amountZScoreWeight;
+            final double wv = velocityWeight;
+            final double ws = similarityCountWeight;
+            final double wf = frequencyRatioWeight;
+            for (int i = 0; i < n; i++) {
+                scores[i] = b + wz * amountZScores[i] + wv * velocities[i]
+                        + ws * similarityCounts[i] + wf * frequencyRatios[i];
+            }
+            if (logistic) {
+                for (int i = 0; i < n; i++) {
+                    scores[i] = sigmoid(scores[i]);
+                }
+            }
+        }
+
+        public FraudDetectionService.AlertLevel toAlertLevel(double score) {
+            if (score >= criticalCutoff) {
+                return FraudDetectionService.AlertLevel.CRITICAL;
+            } else if (score >= highCutoff) {
+                return FraudDetectionService.AlertLevel.HIGH;
+            } else if (score >= mediumCutoff) {
+                return FraudDetectionService.AlertLevel.MEDIUM;
+            }
+            return FraudDetectionService.AlertLevel.LOW;
+        }
+
+        /**
+         * Maps the first n scores of a batch to alert levels, e.g. the output of scoreBatch.
+         */
+        public void toAlertLevels(double[] scores, int n, FraudDetectionService.AlertLevel[] levels) {
+            if (scores.length < n || levels.length < n) {
+                throw new IllegalArgumentException("Score and level arrays must hold at least " + n + " entries");
+            }
+            for (int i = 0; i < n; i++) {
+                levels[i] = toAlertLevel(scores[i]);
+            }
+        }
+
+        private static double sigmoid(double z) {
+            return 1.0 / (1.0 + Math.exp(-z));
+        }
+    }
+    /**
+     * Immutable snapshot of every tunable fraud threshold.
+     * A snapshot is never modified after publication, so readers only need a single reference.
+     */
+    static final class FraudThresholds {
+        static final FraudThresholds DEFAULTS = new FraudThresholds(
+                7,        // velocity check window in days
+                5,        // cheques allowed within the velocity window
+                0.95,     // 95% similarity threshold for pattern analysis
+                0.90,     // 90% similarity threshold against recent history
+                3,        // 3x normal frequency
+                10,       // cheques of history needed before frequency is judged
+                10000.0,  // abnormal single cheque amount
+                10.0,     // multiplier on the abnormal amount for cumulative activity
+                0.05);    // allowed variance from the account's average amount
+
+        final int velocityCheckDays;
+        final int velocityThreshold;
+        final double patternThreshold;
+        final double similarAmountThreshold;
+        final int unusualFrequencyThreshold;
+        final int minChequesForFrequencyCheck;
+        final double abnormalAmountThreshold;
+        final double suspiciousActivityMultiplier;
+        final double amountVarianceThreshold;
+
+        FraudThresholds(int velocityCheckDays, int velocityThreshold, double patternThreshold,
+                        double similarAmountThreshold, int unusualFrequencyThreshold,
+                        int minChequesForFrequencyCheck, double abnormalAmountThreshold,
+                        double suspiciousActivityMultiplier, double amountVarianceThreshold) {
+            this.velocityCheckDays = velocityCheckDays;
+            this.velocityThreshold = velocityThreshold;
+            this.patternThreshold = patternThreshold;
+            this.similarAmountThreshold = similarAmountThreshold;
+            this.unusualFrequencyThreshold = unusualFrequencyThreshold;
+            this.minChequesForFrequencyCheck = minChequesForFrequencyCheck;
+            this.abnormalAmountThreshold = abnormalAmountThreshold;
+            this.suspiciousActivityMultiplier = suspiciousActivityMultiplier;
+            this.amountVarianceThreshold = amountVarianceThreshold;
+        }
+
+        /**
+         * Builds a snapshot from properties, taking any missing key from the given base snapshot.
+         * @throws IllegalArgumentException if a value is malformed or out of range
+         */
+        static FraudThresholds fromProperties(Properties props, FraudThresholds base) {
+            FraudThresholds thresholds = new FraudThresholds(
+                    intValue(props, "fraud.velocity.checkDays", base.velocityCheckDays),
+                    intValue(props, "fraud.velocity.threshold", base.velocityThreshold),
+                    doubleValue(props, "fraud.pattern.threshold", base.patternThreshold),
+                    doubleValue(props, "fraud.similarAmount.threshold", base.similarAmountThreshold),
+                    intValue(props, "fraud.unusualFrequency.threshold", base.unusualFrequencyThreshold),
+                    intValue(props, "fraud.unusualFrequency.minCheques", base.minChequesForFrequencyCheck),
+                    doubleValue(props, "fraud.abnormalAmount.threshold", base.abnormalAmountThreshold),
+                    doubleValue(props, "fraud.suspiciousActivity.multiplier", base.suspiciousActivityMultiplier),
+                    doubleValue(props, "fraud.amountVariance.threshold", base.amountVarianceThreshold));
+            thresholds.validate();
+            return thresholds;
+        }
+
+        private void validate() {
+            if (velocityCheckDays <= 0 || velocityThreshold < 0 || unusualFrequencyThreshold <= 0
+                    || minChequesForFrequencyCheck < 0) {
+                throw new IllegalArgumentException("Count thresholds must not be negative");
+            }
+            if (patternThreshold < 0 || patternThreshold > 1 || similarAmountThreshold < 0 || similarAmountThreshold > 1) {
+                throw new IllegalArgumentException("Similarity thresholds must be between 0 and 1");
+            }
+            if (abnormalAmountThreshold <= 0 || suspiciousActivityMultiplier <= 0 || amountVarianceThreshold < 0) {
+                throw new IllegalArgumentException("Amount thresholds must be positive");
+            }
+        }
+
+        private static int intValue(Properties props, String key, int defaultValue) {
+            String value = props.getProperty(key);
+            return value == null ? defaultValue : Integer.parseInt(value.trim());
+        }
+
+        private static double doubleValue(Properties props, String key, double defaultValue) {
+            String value = props.getProperty(key);
+            return value == null ? defaultValue : Double.parseDouble(value.trim());
+        }
+
+        @Override
+        public String toString() {
+            return "velocityCheckDays=" + velocityCheckDays + ", velocityThreshold=" + velocityThreshold
+                    + ", patternThreshold=" + patternThreshold + ", similarAmountThreshold=" + similarAmountThreshold
+                    + ", unusualFrequencyThreshold=" + unusualFrequencyThreshold
+                    + ", minChequesForFrequencyCheck=" + minChequesForFrequencyCheck
+                    + ", abnormalAmountThreshold=" + abnormalAmountThreshold
+                    + ", suspiciousActivityMultiplier=" + suspiciousActivityMultiplier
+                    + ", amountVarianceThreshold=" + amountVarianceThreshold;
+        }
+    }
+
+    /**
+     * Publishes the active FraudThresholds snapshot and reloads it when the config file changes.
+     * Readers pay one volatile load per check; a bad file keeps the previous snapshot in force.
+     */
+    static class FraudThresholdConfig {
+        private static volatile FraudThresholds current = FraudThresholds.DEFAULTS;
+
+        public static FraudThresholds current() {
+            return current;
+        }
+
+        public static void publish(FraudThresholds thresholds) {
+            current = Objects.requireNonNull(thresholds);
+            Logger.info("Fraud thresholds published: " + thresholds);
+        }
+
+        /**
+         * Loads the file and publishes it on top of the current snapshot.
+         * @return true if a new snapshot was published
+         */
+        public static boolean reload(java.nio.file.Path file) {
+            if (!java.nio.file.Files.isRegularFile(file)) {
+                return false;
+            }
+            Properties props = new Properties();
+            try (java.io.Reader reader = java.nio.file.Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                props.load(reader);
+                publish(FraudThresholds.fromProperties(props, FraudThresholds.DEFAULTS));
+                return true;
+            } catch (IOException | IllegalArgumentException ex) {
+                Logger.warn("Ignoring fraud threshold file " + file + ": " + ex.getMessage());
+                return false;
+            }
+        }
+
+        /**
+         * Loads the file once and then reloads it on every change from a daemon thread.
+         * The file does not need to exist yet; defaults stay in force until it does.
+         */
+        public static void watch(java.nio.file.Path file) throws IOException {
+            java.nio.file.Path absolute = file.toAbsolutePath();
+            java.nio.file.Path directory = absolute.getParent();
+            java.nio.file.Path fileName = absolute.getFileName();
+            if (!reload(absolute)) {
+                Logger.info("Using default fraud thresholds until " + absolute + " is provided");
+            }
+
+            java.nio.file.WatchService watchService = directory.getFileSystem().newWatchService();
+            directory.register(watchService,
+                    java.nio.file.StandardWatchEventKinds.ENTRY_CREATE,
+                    java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY);
+
+            Thread watcher = new Thread(() -> {
+                try {
+                    while (true) {
+                        java.nio.file.WatchKey key = watchService.take();
+                        boolean changed = false;
+                        for (java.nio.file.WatchEvent<?> event : key.pollEvents()) {
+                            if (fileName.equals(event.context())) {
+                                changed = true;
+                            }
+                        }
+                        if (changed) {
+                            reload(absolute);
+                        }
+                        if (!key.reset()) {
+                            Logger.warn("Stopped watching fraud thresholds: " + directory + " is no longer accessible");
+                            return;
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "fraud-threshold-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+    }
+    /**
+     * Fixed-memory streaming tracker for the accounts that drive the most cheque traffic.
+     * A count-min sketch per time slot estimates cheque count and amount per account over a
+     * sliding window, and two small top-K heaps keep the hottest accounts by each metric.
+     * Estimates never undercount, so a low estimate is a safe reason to skip an expensive check.
+     */
+    static class HeavyHitterTracker {
+        private static final int DEFAULT_DEPTH = 4;
+        private static final int DEFAULT_WIDTH = 1024;
+        private static final int DEFAULT_TOP_K = 10;
+        // UTC day slots covering every local day of the history manager's recent window in any
+        // time zone (one extra slot for a zone ahead of UTC), so the frequency pre-check stays sound
+        private static final int DEFAULT_SLOT_COUNT = ChequeHistoryManager.RECENT_DAYS + 2;
+        private static final long DEFAULT_SLOT_MILLIS = 24L * 60 * 60 * 1000; // One slot per day
+
+        private final int depth;
+        private final int widthMask;
+        private final int topK;
+        private final int slotCount;
+        private final long slotMillis;
+
+        // Per-slot sketches plus a running total of all live slots, laid out row-major (depth x width)
+        private final long[][] slotCounts;
+        private final double[][] slotAmounts;
+        private final long[] slotEpochs;
+        private final long[] windowCounts;
+        private final double[] windowAmounts;
+        private long currentEpoch = Long.MIN_VALUE;
+
+        private final PriorityQueue<HotAccount> topByCount;
+        private final PriorityQueue<HotAccount> topByAmount;
+        private final Map<String, HotAccount> countCandidates = new HashMap<>();
+        private final Map<String, HotAccount> amountCandidates = new HashMap<>();
+
+        public HeavyHitterTracker() {
+            this(DEFAULT_DEPTH, DEFAULT_WIDTH, DEFAULT_TOP_K, DEFAULT_SLOT_COUNT, DEFAULT_SLOT_MILLIS);
+        }
+
+        /**
+         * @param depth Number of hash rows in the sketch
+         * @param width Counters per row, rounded up to a power of two
+         * @param topK Number of hot accounts kept per metric
+         * @param slotCount Number of slots in the sliding window
+         * @param slotMillis Duration covered by one slot
+         */
+        public HeavyHitterTracker(int depth, int width, int topK, int slotCount, long slotMillis) {
+            if (depth <= 0 || width <= 0 || topK <= 0 || slotCount <= 0 || slotMillis <= 0) {
+                throw new IllegalArgumentException("Sketch dimensions and window must be positive");
+            }
+            int roundedWidth = Integer.highestOneBit(width - 1) << 1;
+            if (width == 1) {
+                roundedWidth = 1;
+            }
+            this.depth = depth;
+            this.widthMask = roundedWidth - 1;
+            this.topK = topK;
+            this.slotCount = slotCount;
+            this.slotMillis = slotMillis;
+            this.slotCounts = new long[slotCount][depth * roundedWidth];
+            this.slotAmounts = new double[slotCount][depth * roundedWidth];
+            this.slotEpochs = new long[slotCount];
+            Arrays.fill(slotEpochs, Long.MIN_VALUE);
+            this.windowCounts = new long[depth * roundedWidth];
+            this.windowAmounts = new double[depth * roundedWidth];
+            this.topByCount = new PriorityQueue<>(topK, Comparator.comparingDouble(h -> h.score));
+            this.topByAmount = new PriorityQueue<>(topK, Comparator.comparingDouble(h -> h.score));
+        }
+
+        /**
+         * Records one cheque for an account at the current time.
+         * @param accountId The account number
+         * @param amount The cheque amount
+         */
+        public void record(String accountId, double amount) {
+            record(accountId, amount, System.currentTimeMillis());
+        }
+
+        /**
+         * Records one cheque for an account at the given time, used when replaying history.
+         * Cheques older than the window are ignored.
+         */
+        public synchronized void record(String accountId, double amount, long timestampMillis) {
+            long epoch = Math.floorDiv(timestampMillis, slotMillis);
+            advance(Math.max(epoch, Math.floorDiv(System.currentTimeMillis(), slotMillis)));
+            if (epoch <= currentEpoch - slotCount) {
+                return;
+            }
+            int slot = (int) Math.floorMod(epoch, (long) slotCount);
+            long[] counts = slotCounts[slot];
+            double[] amounts = slotAmounts[slot];
+            int hash = accountId.hashCode();
+            for (int row = 0; row < depth; row++) {
+                int index = indexFor(hash, row);
+                counts[index]++;
+                amounts[index] += amount;
+                windowCounts[index]++;
+                windowAmounts[index] += amount;
+            }
+            offer(topByCount, countCandidates, accountId, estimateCount(hash));
+            offer(topByAmount, amountCandidates, accountId, estimateAmount(hash));
+        }
+
+        /**
+         * Estimates how many cheques the account presented within the window. Never undercounts.
+         */
+        public synchronized long estimateCount(String accountId) {
+            advance(Math.floorDiv(System.currentTimeMillis(), slotMillis));
+            return estimateCount(accountId.hashCode());
+        }
+
+        /**
+         * Estimates the total amount the account presented within the window. Never undercounts
+         * for non-negative amounts.
+         */
+        public synchronized double estimateAmount(String accountId) {
+            advance(Math.floorDiv(System.currentTimeMillis(), slotMillis));
+            return estimateAmount(accountId.hashCode());
+        }
+
+        public synchronized List<HotAccount> getTopAccountsByCount() {
+            advance(Math.floorDiv(System.currentTimeMillis(), slotMillis));
+            return snapshot(topByCount);
+        }
+
+        public synchronized List<HotAccount> getTopAccountsByAmount() {
+            advance(Math.floorDiv(System.currentTimeMillis(), slotMillis));
+            return snapshot(topByAmount);
+        }
+
+        public long getWindowMillis() {
+            return slotMillis * slotCount;
+        }
+
+        public void displayHotAccounts() {
+            List<HotAccount> byCount = getTopAccountsByCount();
+            List<HotAccount> byAmount = getTopAccountsByAmount();
+            long windowHours = getWindowMillis() / (60 * 60 * 1000);
+            System.out.println("\n--- Hot Accounts (last " + windowHours + " hours, estimated) ---");
+            if (byCount.isEmpty()) {
+                System.out.println("No cheque activity recorded in the window.");
+                return;
+            }
+            System.out.println("By cheque count:");
+            for (HotAccount hot : byCount) {
+                System.out.printf("Account: %s | Cheques: %d | Amount: %.2f\n", hot.accountId, hot.chequeCount, hot.totalAmount);
+            }
+            System.out.println("By amount:");
+            for (HotAccount hot : byAmount) {
+                System.out.printf("Account: %s | Amount: %.2f | Cheques: %d\n", hot.accountId, hot.totalAmount, hot.chequeCount);
+            }
+        }
+
+        private long estimateCount(int hash) {
+            long min = Long.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                min = Math.min(min, windowCounts[indexFor(hash, row)]);
+            }
+            return min;
+        }
+
+        private double estimateAmount(int hash) {
+            double min = Double.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                min = Math.min(min, windowAmounts[indexFor(hash, row)]);
+            }
+            return min;
+        }
+
+        private int indexFor(int hash, int row) {
+            // Murmur3 finalizer with a per-row seed gives independent-enough row hashes
+            int h = hash ^ (0x9E3779B9 * (row + 1));
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            h *= 0xC2B2AE35;
+            h ^= h >>> 16;
+            return row * (widthMask + 1) + (h & widthMask);
+        }
+
+        /**
+         * Expires slots that have fallen out of the window and rescores the top-K candidates.
+         */
+        private void advance(long epoch) {
+            if (epoch <= currentEpoch) {
+                return;
+            }
+            boolean expired = false;
+            for (int slot = 0; slot < slotCount; slot++) {
+                if (slotEpochs[slot] != Long.MIN_VALUE && slotEpochs[slot] <= epoch - slotCount) {
+                    long[] counts = slotCounts[slot];
+                    double[] amounts = slotAmounts[slot];
+                    for (int i = 0; i < counts.length; i++) {
+                        windowCounts[i] -= counts[i];
+                        windowAmounts[i] -= amounts[i];
+                    }
+                    Arrays.fill(counts, 0L);
+                    Arrays.fill(amounts, 0.0);
+                    slotEpochs[slot] = Long.MIN_VALUE;
+                    expired = true;
+                }
+            }
+            for (long e = Math.max(currentEpoch + 1, epoch - slotCount + 1); e <= epoch; e++) {
+                slotEpochs[(int) Math.floorMod(e, (long) slotCount)] = e;
+            }
+            currentEpoch = epoch;
+            if (expired) {
+                rescore(topByCount, countCandidates, true);
+                rescore(topByAmount, amountCandidates, false);
+            }
+        }
+
+        private void offer(PriorityQueue<HotAccount> heap, Map<String, HotAccount> candidates, String accountId, double score) {
+            HotAccount existing = candidates.get(accountId);
+            if (existing != null) {
+                heap.remove(existing);
+                existing.score = score;
+                heap.add(existing);
+                return;
+            }
+            if (heap.size() < topK) {
+                HotAccount hot = new HotAccount(accountId, score);
+                heap.add(hot);
+                candidates.put(accountId, hot);
+            } else if (heap.peek().score < score) {
+                HotAccount evicted = heap.poll();
+                candidates.remove(evicted.accountId);
+                HotAccount hot = new HotAccount(accountId, score);
+                heap.add(hot);
+                candidates.put(accountId, hot);
+            }
+        }
+
+        private void rescore(PriorityQueue<HotAccount> heap, Map<String, HotAccount> candidates, boolean byCount) {
+            List<HotAccount> entries = new ArrayList<>(heap);
+            heap.clear();
+            for (HotAccount hot : entries) {
+                int hash = hot.accountId.hashCode();
+                hot.score = byCount ? estimateCount(hash) : estimateAmount(hash);
+                if (hot.score > 0) {
+                    heap.add(hot);
+                } else {
+                    candidates.remove(hot.accountId);
+                }
+            }
+        }
+
+        private List<HotAccount> snapshot(PriorityQueue<HotAccount> heap) {
+            List<HotAccount> result = new ArrayList<>(heap.size());
+            for (HotAccount hot : heap) {
+                int hash = hot.accountId.hashCode();
+                HotAccount copy = new HotAccount(hot.accountId, hot.score);
+                copy.chequeCount = estimateCount(hash);
+                copy.totalAmount = estimateAmount(hash);
+                result.add(copy);
+            }
+            result.sort((a, b) -> Double.compare(b.score, a.score));
+            return result;
+        }
+
+        /**
+         * An account in a top-K list with its estimated window totals.
+         */
+        static class HotAccount {
+            private final String accountId;
+            private double score;
+            private long chequeCount;
+            private double totalAmount;
+
+            HotAccount(String accountId, double score) {
+                this.accountId = accountId;
+                this.score = score;
+            }
+
+            public String getAccountId() {
+                return accountId;
+            }
+
+            public long getChequeCount() {
+                return chequeCount;
+            }
+
+            public double getTotalAmount() {
+                return totalAmount;
+            }
+        }
+    }
+    /**
+     * Book-wide index of cheque fingerprints for catching the same physical cheque
+     * presented under any account. Fingerprints live in an open-addressing table of
+     * primitive arrays sized from a memory budget, and entries expire after a time-to-live.
+     */
+    static class ChequeFingerprintIndex {
+        private static final int BYTES_PER_SLOT = 3 * Long.BYTES;
+        private static final int MIN_CAPACITY = 1024;
+        private static final int MAX_PROBES = 32;
+        private static final long FNV_OFFSET = 0xCBF29CE484222325L;
+        private static final long FNV_PRIME = 0x100000001B3L;
+
+        // Slot i is empty while fingerprints[i] == 0; expired slots are reused in place
+        private final long[] fingerprints;
+        private final long[] accountHashes;
+        private final long[] expiresAt;
+        private final int mask;
+        private final long ttlMillis;
+
+        /**
+         * @param memoryBudgetBytes Upper bound on the memory used by the table
+         * @param ttlMillis How long a fingerprint is remembered after it was last presented
+         */
+        public ChequeFingerprintIndex(long memoryBudgetBytes, long ttlMillis) {
+            if (ttlMillis <= 0) {
+                throw new IllegalArgumentException("Fingerprint time-to-live must be positive");
+            }
+            long slots = Math.max(MIN_CAPACITY, memoryBudgetBytes / BYTES_PER_SLOT);
+            int capacity = (int) Long.highestOneBit(Math.min(slots, 1L << 30));
+            this.fingerprints = new long[capacity];
+            this.accountHashes = new long[capacity];
+            this.expiresAt = new long[capacity];
+            this.mask = capacity - 1;
+            this.ttlMillis = ttlMillis;
+        }
+
+        /**
+         * Records the cheque and reports whether the same cheque number, amount and currency
+         * is already live in the index under a different account. A repeat under the same
+         * account only refreshes the entry; the per-account checks cover that case.
+         * @return true if the cheque was presented under another account within the time-to-live
+         */
+        public boolean checkAndRecord(String accountId, String chequeNumber, int currency, double amount) {
+            return checkAndRecord(accountId, chequeNumber, currency, amount, System.currentTimeMillis());
+        }
+
+        /**
+         * Records a cheque presented at the given time, used when replaying history.
+         * Cheques whose time-to-live has already run out are ignored.
+         */
+        public synchronized boolean checkAndRecord(String accountId, String chequeNumber, int currency, double amount,
+                                                   long presentedAtMillis) {
+            long now = System.currentTimeMillis();
+            long expiry = presentedAtMillis + ttlMillis;
+            if (expiry <= now) {
+                return false;
+            }
+            long fingerprint = fingerprint(chequeNumber, currency, amount);
+            long accountHash = hash(accountId);
+            int reusable = -1;
+            long oldestExpiry = Long.MAX_VALUE;
+            int oldest = -1;
+            int index = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+            for (int probe = 0; probe < MAX_PROBES; probe++, index = (index + 1) & mask) {
+                long stored = fingerprints[index];
+                if (stored == 0) {
+                    if (reusable < 0) {
+                        reusable = index;
+                    }
+                    break;
+                }
+                if (expiresAt[index] <= now) {
+                    if (reusable < 0) {
+                        reusable = index;
+                    }
+                    continue;
+                }
+                if (stored == fingerprint) {
+                    expiresAt[index] = Math.max(expiresAt[index], expiry);
+                    if (accountHashes[index] == accountHash) {
+                        return false;
+                    }
+                    Logger.warn("Cheque " + chequeNumber + " was already presented under another account");
+                    return true;
+                }
+                if (expiresAt[index] < oldestExpiry) {
+                    oldestExpiry = expiresAt[index];
+                    oldest = index;
+                }
+            }
+            // When the probe window is full of live entries, the one closest to expiry gives way
+            int slot = reusable >= 0 ? reusable : oldest;
+            fingerprints[slot] = fingerprint;
+            accountHashes[slot] = accountHash;
+            expiresAt[slot] = expiry;
+            return false;
+        }
+
+        public int capacity() {
+            return fingerprints.length;
+        }
+
+        public long memoryBytes() {
+            return (long) fingerprints.length * BYTES_PER_SLOT;
+        }
+
+        private static long fingerprint(String chequeNumber, int currency, double amount) {
+            long h = FNV_OFFSET;
+            for (int i = 0; i < chequeNumber.length(); i++) {
+                h = (h ^ chequeNumber.charAt(i)) * FNV_PRIME;
+            }
+            h = (h ^ '|') * FNV_PRIME;
+            h = (h ^ currency) * FNV_PRIME;
+            h = (h ^ Double.doubleToLongBits(amount + 0.0)) * FNV_PRIME;
+            h ^= h >>> 33;
+            // Zero marks an empty slot
+            return h == 0 ? 1 : h;
+        }
+
+        private static long hash(String value) {
+            long h = FNV_OFFSET;
+            for (int i = 0; i < value.length(); i++) {
+                h = (h ^ value.charAt(i)) * FNV_PRIME;
+            }
+            return h;
+        }
+    }
     /**
      * AdminService for master data and batch/transaction management.
      */
@@ -2367,8 +7447,9 @@ public class MainApplication {
             }
             System.out.println("Batch " + batchId + " details:");
             for (BatchCheque cheque : cheques) {
-                System.out.printf("Account: %s | Cheque: %s | Amount: %.2f | Currency: %s\n",
-                    cheque.accountNumber, cheque.chequeNumber, cheque.amount, cheque.currency);
+                System.out.printf("Account: %s | Cheque: %s | Amount: %s | Currency: %s\n",
+                    cheque.accountNumber, cheque.chequeNumber, Money.format(cheque.amount, cheque.currency),
+                    CurrencyRegistry.code(cheque.currency));
             }
         }
 